@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.preference.PreferenceManager;
+
+import org.json.JSONException;
+import org.lineageos.updater.download.DownloadClient;
+import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.misc.UpdateListParser;
+import org.lineageos.updater.misc.UpdateListSnapshot;
+import org.lineageos.updater.misc.UpdateListValidators;
+import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the cached list of updates and is the only one allowed to refresh it.
+ * The list is the merge of the lists of all the sources, each source keeps
+ * its own cached copy. Refreshes requested while one is in progress don't
+ * start a new download, they get the result of the one in progress. Every
+ * time the cached list is replaced, ACTION_UPDATE_LIST_CHANGED is broadcast
+ * locally.
+ */
+public final class UpdateListRepository {
+
+    private static final String TAG = "UpdateListRepository";
+
+    public static final String ACTION_UPDATE_LIST_CHANGED = "action_update_list_changed";
+
+    private static final String PREF_SOURCES = "updates_list_sources";
+    private static final String SOURCE_FILE_PREFIX = "updates-";
+    private static final int SOURCE_TIMEOUT_MS = 15000;
+    // The connect and read timeouts don't stop servers sending data slowly
+    private static final long REFRESH_DEADLINE_MS = 30000;
+
+    public interface Callback {
+        /**
+         * Called from a background thread once the list is up to date
+         *
+         * @param updates the updates of the cached list
+         * @param newUpdates whether the list has updates that weren't in the previous one,
+         *                   or has any update if there was no previous list
+         */
+        void onRefreshed(List<UpdateInfo> updates, boolean newUpdates);
+
+        /**
+         * Called from a background thread if the list couldn't be refreshed
+         */
+        void onRefreshFailed();
+    }
+
+    private static volatile UpdateListRepository sInstance = null;
+
+    private final Context mContext;
+
+    private final List<Callback> mCallbacks = new ArrayList<>();
+    private boolean mRefreshing;
+
+    private UpdateListRepository(Context context) {
+        mContext = context;
+    }
+
+    public static UpdateListRepository getInstance(Context context) {
+        UpdateListRepository instance = sInstance;
+        if (instance == null) {
+            synchronized (UpdateListRepository.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = new UpdateListRepository(context.getApplicationContext());
+                    sInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Download the list of updates, unless it's already being downloaded
+     *
+     * @param callback notified when the download in progress is over
+     */
+    public void refresh(Callback callback) {
+        synchronized (mCallbacks) {
+            mCallbacks.add(callback);
+            if (mRefreshing) {
+                Log.d(TAG, "Already refreshing");
+                return;
+            }
+            mRefreshing = true;
+        }
+        new Refresh(Utils.getServerURLs(mContext)).start();
+    }
+
+    private File getSourceFile(String url) {
+        return new File(mContext.getCacheDir(),
+                SOURCE_FILE_PREFIX + Integer.toHexString(url.hashCode()) + ".json");
+    }
+
+    private static class Source {
+        private final String mUrl;
+        private final File mFile;
+        private final File mNewFile;
+        private final UpdateListValidators mValidators = new UpdateListValidators();
+        // Whether a new list was downloaded to mNewFile
+        private boolean mDownloaded;
+
+        private Source(String url, File file) {
+            mUrl = url;
+            mFile = file;
+            mNewFile = new File(file.getAbsolutePath() + UUID.randomUUID());
+        }
+    }
+
+    /**
+     * Downloads the lists of all the sources at the same time and merges them
+     * once every source answered, failed or timed out, or once the deadline
+     * passed. The cached list of a source that didn't answer is used in place
+     * of the new one.
+     */
+    private class Refresh {
+        private final List<Source> mSources = new ArrayList<>();
+        // The sources that answered, in the order they did
+        private final List<Source> mAnswered = new ArrayList<>();
+        // The clients of the sources that are still downloading
+        private final Map<Source, DownloadClient> mClients = new HashMap<>();
+        private final ScheduledExecutorService mDeadline =
+                Executors.newSingleThreadScheduledExecutor();
+        private int mPending;
+        // Whether the sources that are done were merged, later answers are ignored
+        private boolean mFinished;
+
+        private Refresh(List<String> urls) {
+            for (String url : urls) {
+                mSources.add(new Source(url, getSourceFile(url)));
+            }
+        }
+
+        private void start() {
+            mPending = mSources.size();
+            mDeadline.schedule(this::onDeadline, REFRESH_DEADLINE_MS, TimeUnit.MILLISECONDS);
+            for (Source source : mSources) {
+                fetch(source);
+            }
+        }
+
+        private void fetch(final Source source) {
+            Log.d(TAG, "Checking " + source.mUrl);
+            DownloadClient.DownloadCallback downloadCallback =
+                    new DownloadClient.DownloadCallback() {
+                @Override
+                public void onFailure(boolean cancelled) {
+                    Log.e(TAG, "Could not download " + source.mUrl);
+                    //noinspection ResultOfMethodCallIgnored
+                    source.mNewFile.delete();
+                    onSourceDone(source, false, false);
+                }
+
+                @Override
+                public void onResponse(DownloadClient.Headers headers) {
+                    source.mValidators.onResponse(headers);
+                }
+
+                @Override
+                public void onNotModified() {
+                    Log.d(TAG, source.mUrl + " didn't change");
+                    onSourceDone(source, true, false);
+                }
+
+                @Override
+                public void onSuccess() {
+                    onSourceDone(source, true, true);
+                }
+            };
+
+            try {
+                DownloadClient.Builder builder = new DownloadClient.Builder()
+                        .setUrl(source.mUrl)
+                        .setDestination(source.mNewFile)
+                        .setDownloadCallback(downloadCallback)
+                        .setAcceptGzip(true)
+                        .setTimeout(SOURCE_TIMEOUT_MS)
+                        .addRequestHeader("Accept", UpdateListParser.getAcceptedTypes());
+                UpdateListValidators.addTo(mContext, builder, source.mUrl, source.mFile);
+                DownloadClient client = builder.build();
+                synchronized (this) {
+                    mClients.put(source, client);
+                }
+                client.start();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not build download client", e);
+                onSourceDone(source, false, false);
+            }
+        }
+
+        /**
+         * @param answered whether the source sent its list or told us it didn't change
+         * @param downloaded whether a new list was downloaded
+         */
+        private void onSourceDone(Source source, boolean answered, boolean downloaded) {
+            synchronized (this) {
+                if (mFinished) {
+                    // Too late, the list was merged without this source
+                    if (downloaded) {
+                        //noinspection ResultOfMethodCallIgnored
+                        source.mNewFile.delete();
+                    }
+                    return;
+                }
+                mClients.remove(source);
+                source.mDownloaded = downloaded;
+                if (answered) {
+                    mAnswered.add(source);
+                }
+                if (--mPending > 0) {
+                    return;
+                }
+                mFinished = true;
+            }
+            mDeadline.shutdownNow();
+            finish();
+        }
+
+        /**
+         * Stop waiting for the sources that are still downloading, their cached
+         * lists are used instead
+         */
+        private void onDeadline() {
+            List<DownloadClient> clients;
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+                mFinished = true;
+                clients = new ArrayList<>(mClients.values());
+                mClients.clear();
+            }
+            Log.e(TAG, clients.size() + " sources didn't answer in time");
+            for (DownloadClient client : clients) {
+                client.cancel();
+            }
+            mDeadline.shutdown();
+            finish();
+        }
+
+        private void finish() {
+            // The first source to answer wins, then the others in the order they answered
+            List<Source> sources = new ArrayList<>(mAnswered);
+            for (Source source : mSources) {
+                if (!sources.contains(source)) {
+                    sources.add(source);
+                }
+            }
+
+            final File json = Utils.getCachedUpdateList(mContext);
+            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+            List<String> urls = new ArrayList<>();
+            for (Source source : mSources) {
+                urls.add(source.mUrl);
+            }
+            String sourceUrls = TextUtils.join("\n", urls);
+            boolean changed = !json.exists() ||
+                    !sourceUrls.equals(preferences.getString(PREF_SOURCES, null));
+            // Whether we got at least one list that is up to date
+            boolean anyAnswer = false;
+            // The sources whose new list must replace the cached one once merged
+            List<Source> downloaded = new ArrayList<>();
+            Map<String, UpdateInfo> merged = new LinkedHashMap<>();
+            for (Source source : sources) {
+                boolean upToDate = mAnswered.contains(source);
+                List<UpdateInfo> updates = null;
+                if (source.mDownloaded) {
+                    try {
+                        updates = Utils.parseJson(source.mNewFile, false);
+                        downloaded.add(source);
+                        changed = true;
+                    } catch (IOException | JSONException e) {
+                        Log.e(TAG, "Could not parse " + source.mUrl, e);
+                        updates = null;
+                        upToDate = false;
+                        //noinspection ResultOfMethodCallIgnored
+                        source.mNewFile.delete();
+                    }
+                }
+                if (updates == null && source.mFile.exists()) {
+                    try {
+                        updates = Utils.parseJson(source.mFile, false);
+                    } catch (IOException | JSONException e) {
+                        Log.e(TAG, "Could not parse the cached " + source.mUrl, e);
+                    }
+                }
+                if (updates == null) {
+                    continue;
+                }
+                anyAnswer |= upToDate;
+                for (UpdateInfo update : updates) {
+                    merged.putIfAbsent(update.getDownloadId(), update);
+                }
+            }
+
+            if (!anyAnswer) {
+                notifyFailed();
+                return;
+            }
+
+            if (!changed) {
+                try {
+                    List<UpdateInfo> updates = UpdateListSnapshot.get(json);
+                    onChecked();
+                    notifyRefreshed(updates, false);
+                } catch (IOException | JSONException e) {
+                    Log.e(TAG, "Could not read the cached list", e);
+                    notifyFailed();
+                }
+                return;
+            }
+
+            final File jsonNew = new File(json.getAbsolutePath() + UUID.randomUUID());
+            try {
+                UpdateListParser.write(jsonNew, merged.values());
+                List<UpdateInfo> updates = UpdateListSnapshot.get(jsonNew);
+                // Without a previous list, every update is new
+                boolean newUpdates = json.exists() ?
+                        Utils.checkForNewUpdates(json, jsonNew) : !updates.isEmpty();
+                if (!jsonNew.renameTo(json)) {
+                    throw new IOException("Could not replace the cached list");
+                }
+                // Only now, or the validators would make us miss the lists next time
+                replaceSourceFiles(downloaded);
+                removeOldSources(preferences.getString(PREF_SOURCES, null));
+                preferences.edit().putString(PREF_SOURCES, sourceUrls).apply();
+                onChecked();
+                if (newUpdates) {
+                    UpdatesCheckReceiver.scheduleRepeatingUpdatesCheck(mContext);
+                }
+                LocalBroadcastManager.getInstance(mContext).sendBroadcast(
+                        new Intent(ACTION_UPDATE_LIST_CHANGED));
+                notifyRefreshed(updates, newUpdates);
+            } catch (IOException | JSONException e) {
+                Log.e(TAG, "Could not save the list", e);
+                //noinspection ResultOfMethodCallIgnored
+                jsonNew.delete();
+                for (Source source : downloaded) {
+                    //noinspection ResultOfMethodCallIgnored
+                    source.mNewFile.delete();
+                }
+                notifyFailed();
+            }
+        }
+
+        private void replaceSourceFiles(List<Source> sources) {
+            for (Source source : sources) {
+                if (source.mNewFile.renameTo(source.mFile)) {
+                    source.mValidators.store(mContext, source.mUrl);
+                } else {
+                    // Without validators, the list gets downloaded again next time
+                    Log.e(TAG, "Could not replace " + source.mFile);
+                    //noinspection ResultOfMethodCallIgnored
+                    source.mNewFile.delete();
+                    UpdateListValidators.remove(mContext, source.mUrl);
+                }
+            }
+        }
+
+        private void removeOldSources(String oldSourceUrls) {
+            if (oldSourceUrls == null) {
+                return;
+            }
+            for (String url : oldSourceUrls.split("\n")) {
+                boolean found = false;
+                for (Source source : mSources) {
+                    found |= source.mUrl.equals(url);
+                }
+                if (!found) {
+                    Log.d(TAG, "Removing old source " + url);
+                    //noinspection ResultOfMethodCallIgnored
+                    getSourceFile(url).delete();
+                    UpdateListValidators.remove(mContext, url);
+                }
+            }
+        }
+    }
+
+    private void onChecked() {
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putLong(Constants.PREF_LAST_UPDATE_CHECK, System.currentTimeMillis())
+                .apply();
+        // In case we set a one-shot check because of a previous failure
+        UpdatesCheckReceiver.cancelUpdatesCheck(mContext);
+    }
+
+    private List<Callback> takeCallbacks() {
+        synchronized (mCallbacks) {
+            List<Callback> callbacks = new ArrayList<>(mCallbacks);
+            mCallbacks.clear();
+            mRefreshing = false;
+            return callbacks;
+        }
+    }
+
+    private void notifyRefreshed(List<UpdateInfo> updates, boolean newUpdates) {
+        for (Callback callback : takeCallbacks()) {
+            callback.onRefreshed(updates, newUpdates);
+        }
+    }
+
+    private void notifyFailed() {
+        for (Callback callback : takeCallbacks()) {
+            callback.onRefreshFailed();
+        }
+    }
+}
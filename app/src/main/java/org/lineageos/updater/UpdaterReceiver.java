@@ -23,11 +23,13 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.PowerManager;
-import android.os.SystemProperties;
 
 import androidx.core.app.NotificationCompat;
 import androidx.preference.PreferenceManager;
 
+import org.lineageos.updater.controller.InstallerState;
+import org.lineageos.updater.controller.PayloadCleanupJobService;
+import org.lineageos.updater.controller.ResumeDownloadsJobService;
 import org.lineageos.updater.misc.BuildInfoUtils;
 import org.lineageos.updater.misc.Constants;
 import org.lineageos.updater.misc.StringGenerator;
@@ -52,7 +54,7 @@ public class UpdaterReceiver extends BroadcastReceiver {
             return false;
         }
 
-        long buildTimestamp = SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
+        long buildTimestamp = BuildInfoUtils.getBuildDateTimestamp();
         long lastBuildTimestamp = preferences.getLong(Constants.PREF_INSTALL_OLD_TIMESTAMP, -1);
         return buildTimestamp == lastBuildTimestamp;
     }
@@ -92,7 +94,9 @@ public class UpdaterReceiver extends BroadcastReceiver {
             pm.reboot(null);
         } else if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
             SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
-            pref.edit().remove(Constants.PREF_NEEDS_REBOOT_ID).apply();
+            InstallerState.getInstance(context).clearNeedsReboot();
+            PayloadCleanupJobService.scheduleIfNeeded(context);
+            ResumeDownloadsJobService.scheduleIfNeeded(context);
 
             if (shouldShowUpdateFailedNotification(context)) {
                 pref.edit().putBoolean(Constants.PREF_INSTALL_NOTIFIED, true).apply();
@@ -33,6 +33,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.SystemProperties;
+import android.text.format.DateUtils;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
@@ -67,12 +68,14 @@ import com.google.android.material.appbar.CollapsingToolbarLayout;
 import com.google.android.material.snackbar.Snackbar;
 
 import org.json.JSONException;
+import org.lineageos.updater.controller.AutoDownloadJobService;
 import org.lineageos.updater.controller.UpdaterController;
 import org.lineageos.updater.controller.UpdaterService;
-import org.lineageos.updater.download.DownloadClient;
 import org.lineageos.updater.misc.BuildInfoUtils;
 import org.lineageos.updater.misc.Constants;
 import org.lineageos.updater.misc.StringGenerator;
+import org.lineageos.updater.misc.UpdateListDiff;
+import org.lineageos.updater.misc.UpdateListSnapshot;
 import org.lineageos.updater.misc.Utils;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateInfo;
@@ -80,16 +83,23 @@ import org.lineageos.updater.model.UpdateInfo;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class UpdatesActivity extends UpdatesListActivity implements UpdateImporter.Callbacks {
 
     private static final String TAG = "UpdatesActivity";
+
+    // Show the cached list right away, but refresh it if it's older than this
+    private static final long LIST_STALE_AFTER_MS = TimeUnit.HOURS.toMillis(1);
     private UpdaterService mUpdaterService;
     private BroadcastReceiver mBroadcastReceiver;
 
     private UpdatesListAdapter mAdapter;
+    // The list of updates given to the controller, to apply only what changes
+    private List<UpdateInfo> mLoadedUpdates;
 
     private View mRefreshIconView;
     private RotateAnimation mRefreshAnimation;
@@ -147,6 +157,11 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                 } else if (UpdaterController.ACTION_UPDATE_REMOVED.equals(intent.getAction())) {
                     String downloadId = intent.getStringExtra(UpdaterController.EXTRA_DOWNLOAD_ID);
                     mAdapter.removeItem(downloadId);
+                } else if (UpdateListRepository.ACTION_UPDATE_LIST_CHANGED.equals(
+                        intent.getAction())) {
+                    if (mUpdaterService != null) {
+                        getUpdatesList();
+                    }
                 }
             }
         };
@@ -240,6 +255,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         intentFilter.addAction(UpdaterController.ACTION_DOWNLOAD_PROGRESS);
         intentFilter.addAction(UpdaterController.ACTION_INSTALL_PROGRESS);
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
+        intentFilter.addAction(UpdateListRepository.ACTION_UPDATE_LIST_CHANGED);
         LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
     }
 
@@ -356,6 +372,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
             UpdaterService.LocalBinder binder = (UpdaterService.LocalBinder) service;
             mUpdaterService = binder.getService();
             mAdapter.setUpdaterController(mUpdaterService.getUpdaterController());
+            mLoadedUpdates = null;
             getUpdatesList();
         }
 
@@ -367,34 +384,46 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         }
     };
 
-    private void loadUpdatesList(File jsonFile, boolean manualRefresh)
-            throws IOException, JSONException {
-        Log.d(TAG, "Adding remote updates");
+    private void loadUpdatesList(File jsonFile) throws IOException, JSONException {
         UpdaterController controller = mUpdaterService.getUpdaterController();
-        boolean newUpdates = false;
+        List<UpdateInfo> updates = UpdateListSnapshot.get(jsonFile);
+        if (mLoadedUpdates != null) {
+            // Only apply what changed since the list we loaded last time
+            UpdateListDiff diff = UpdateListDiff.compute(mLoadedUpdates, updates);
+            mLoadedUpdates = updates;
+            Log.d(TAG, "Updating remote updates: " + diff.getAdded().size() + " added, " +
+                    diff.getChanged().size() + " changed, " + diff.getRemoved().size() +
+                    " removed");
+            for (String downloadId : controller.applyUpdateListDiff(diff)) {
+                mAdapter.insertItem(downloadId);
+            }
+            for (UpdateInfo update : diff.getChanged()) {
+                mAdapter.notifyItemChanged(update.getDownloadId());
+            }
+            for (String downloadId : diff.getRemoved()) {
+                // The ones removed from the controller are removed from the
+                // adapter when ACTION_UPDATE_REMOVED is received
+                if (controller.getUpdate(downloadId) != null) {
+                    mAdapter.notifyItemChanged(downloadId);
+                }
+            }
+            updateNoUpdatesView(controller.getUpdates().isEmpty());
+            return;
+        }
 
-        List<UpdateInfo> updates = Utils.parseJson(jsonFile, true);
-        List<String> updatesOnline = new ArrayList<>();
+        Log.d(TAG, "Adding remote updates");
+        mLoadedUpdates = updates;
+        Set<String> updatesOnline = new HashSet<>();
         for (UpdateInfo update : updates) {
-            newUpdates |= controller.addUpdate(update);
+            controller.addUpdate(update);
             updatesOnline.add(update.getDownloadId());
         }
         controller.setUpdatesAvailableOnline(updatesOnline, true);
 
-        if (manualRefresh) {
-            showSnackbar(
-                    newUpdates ? R.string.snack_updates_found : R.string.snack_no_updates_found,
-                    Snackbar.LENGTH_SHORT);
-        }
-
         List<String> updateIds = new ArrayList<>();
         List<UpdateInfo> sortedUpdates = controller.getUpdates();
-        if (sortedUpdates.isEmpty()) {
-            findViewById(R.id.no_new_updates_view).setVisibility(View.VISIBLE);
-            findViewById(R.id.recycler_view).setVisibility(View.GONE);
-        } else {
-            findViewById(R.id.no_new_updates_view).setVisibility(View.GONE);
-            findViewById(R.id.recycler_view).setVisibility(View.VISIBLE);
+        updateNoUpdatesView(sortedUpdates.isEmpty());
+        if (!sortedUpdates.isEmpty()) {
             sortedUpdates.sort((u1, u2) -> Long.compare(u2.getTimestamp(), u1.getTimestamp()));
             for (UpdateInfo update : sortedUpdates) {
                 updateIds.add(update.getDownloadId());
@@ -404,97 +433,84 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
         }
     }
 
+    private void updateNoUpdatesView(boolean noUpdates) {
+        findViewById(R.id.no_new_updates_view).setVisibility(noUpdates ? View.VISIBLE : View.GONE);
+        findViewById(R.id.recycler_view).setVisibility(noUpdates ? View.GONE : View.VISIBLE);
+    }
+
     private void getUpdatesList() {
         File jsonFile = Utils.getCachedUpdateList(this);
         if (jsonFile.exists()) {
             try {
-                loadUpdatesList(jsonFile, false);
+                loadUpdatesList(jsonFile);
                 Log.d(TAG, "Cached list parsed");
+                updateLastCheckedString();
             } catch (IOException | JSONException e) {
                 Log.e(TAG, "Error while parsing json list", e);
             }
+            if (isUpdatesListStale()) {
+                Log.d(TAG, "Cached list is stale, refreshing it");
+                downloadUpdatesList(false);
+            }
         } else {
             downloadUpdatesList(false);
         }
     }
 
-    private void processNewJson(File json, File jsonNew, boolean manualRefresh) {
-        try {
-            loadUpdatesList(jsonNew, manualRefresh);
-            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
-            long millis = System.currentTimeMillis();
-            preferences.edit().putLong(Constants.PREF_LAST_UPDATE_CHECK, millis).apply();
-            updateLastCheckedString();
-            if (json.exists() && Utils.isUpdateCheckEnabled(this) &&
-                    Utils.checkForNewUpdates(json, jsonNew)) {
-                UpdatesCheckReceiver.updateRepeatingUpdatesCheck(this);
-            }
-            // In case we set a one-shot check because of a previous failure
-            UpdatesCheckReceiver.cancelUpdatesCheck(this);
-            //noinspection ResultOfMethodCallIgnored
-            jsonNew.renameTo(json);
-        } catch (IOException | JSONException e) {
-            Log.e(TAG, "Could not read json", e);
-            showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
-        }
+    private boolean isUpdatesListStale() {
+        long lastCheck = PreferenceManager.getDefaultSharedPreferences(this)
+                .getLong(Constants.PREF_LAST_UPDATE_CHECK, -1);
+        return System.currentTimeMillis() - lastCheck > LIST_STALE_AFTER_MS;
     }
 
     private void downloadUpdatesList(final boolean manualRefresh) {
-        final File jsonFile = Utils.getCachedUpdateList(this);
-        final File jsonFileTmp = new File(jsonFile.getAbsolutePath() + UUID.randomUUID());
-        String url = Utils.getServerURL(this);
-        Log.d(TAG, "Checking " + url);
-
-        DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
+        refreshAnimationStart();
+        // The list itself is reloaded when ACTION_UPDATE_LIST_CHANGED is received
+        UpdateListRepository.getInstance(this).refresh(new UpdateListRepository.Callback() {
             @Override
-            public void onFailure(final boolean cancelled) {
-                Log.e(TAG, "Could not download updates list");
+            public void onRefreshed(List<UpdateInfo> updates, boolean newUpdates) {
                 runOnUiThread(() -> {
-                    if (!cancelled) {
-                        showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
+                    updateLastCheckedString();
+                    if (manualRefresh) {
+                        showSnackbar(newUpdates ?
+                                        R.string.snack_updates_found :
+                                        R.string.snack_no_updates_found,
+                                Snackbar.LENGTH_SHORT);
                     }
                     refreshAnimationStop();
                 });
             }
 
             @Override
-            public void onResponse(DownloadClient.Headers headers) {
-            }
-
-            @Override
-            public void onSuccess() {
+            public void onRefreshFailed() {
                 runOnUiThread(() -> {
-                    Log.d(TAG, "List downloaded");
-                    processNewJson(jsonFile, jsonFileTmp, manualRefresh);
+                    // Keep showing the cached list if we have one, the header tells how old it is
+                    boolean hasList = Utils.getCachedUpdateList(UpdatesActivity.this).exists();
+                    if (manualRefresh || !hasList) {
+                        showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
+                    }
+                    updateLastCheckedString();
                     refreshAnimationStop();
                 });
             }
-        };
-
-        final DownloadClient downloadClient;
-        try {
-            downloadClient = new DownloadClient.Builder()
-                    .setUrl(url)
-                    .setDestination(jsonFileTmp)
-                    .setDownloadCallback(callback)
-                    .build();
-        } catch (IOException exception) {
-            Log.e(TAG, "Could not build download client");
-            showSnackbar(R.string.snack_updates_check_failed, Snackbar.LENGTH_LONG);
-            return;
-        }
-
-        refreshAnimationStart();
-        downloadClient.start();
+        });
     }
 
     private void updateLastCheckedString() {
         final SharedPreferences preferences =
                 PreferenceManager.getDefaultSharedPreferences(this);
-        long lastCheck = preferences.getLong(Constants.PREF_LAST_UPDATE_CHECK, -1) / 1000;
-        String lastCheckString = getString(R.string.header_last_updates_check,
-                StringGenerator.getDateLocalized(this, DateFormat.LONG, lastCheck),
-                StringGenerator.getTimeLocalized(this, lastCheck));
+        long lastCheckMillis = preferences.getLong(Constants.PREF_LAST_UPDATE_CHECK, -1);
+        long lastCheck = lastCheckMillis / 1000;
+        String lastCheckString;
+        if (lastCheckMillis > 0 && isUpdatesListStale()) {
+            lastCheckString = getString(R.string.header_last_updates_check_relative,
+                    DateUtils.getRelativeTimeSpanString(lastCheckMillis,
+                            System.currentTimeMillis(), DateUtils.MINUTE_IN_MILLIS));
+        } else {
+            lastCheckString = getString(R.string.header_last_updates_check,
+                    StringGenerator.getDateLocalized(this, DateFormat.LONG, lastCheck),
+                    StringGenerator.getTimeLocalized(this, lastCheck));
+        }
         TextView headerLastCheck = findViewById(R.id.header_last_check);
         headerLastCheck.setText(lastCheckString);
     }
@@ -515,6 +531,9 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
             case VERIFIED:
                 showSnackbar(R.string.snack_download_verified, Snackbar.LENGTH_LONG);
                 break;
+            case INSUFFICIENT_SPACE:
+                showSnackbar(R.string.snack_download_insufficient_space, Snackbar.LENGTH_LONG);
+                break;
         }
     }
 
@@ -580,6 +599,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
     private void showPreferencesDialog() {
         View view = LayoutInflater.from(this).inflate(R.layout.preferences_dialog, null);
         Spinner autoCheckInterval = view.findViewById(R.id.preferences_auto_updates_check_interval);
+        SwitchCompat autoDownload = view.findViewById(R.id.preferences_auto_download_updates);
         SwitchCompat autoDelete = view.findViewById(R.id.preferences_auto_delete_updates);
         SwitchCompat meteredNetworkWarning = view.findViewById(
                 R.id.preferences_metered_network_warning);
@@ -592,6 +612,7 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         autoCheckInterval.setSelection(Utils.getUpdateCheckSetting(this));
+        autoDownload.setChecked(prefs.getBoolean(Constants.PREF_AUTO_DOWNLOAD_UPDATES, false));
         autoDelete.setChecked(prefs.getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false));
         meteredNetworkWarning.setChecked(prefs.getBoolean(Constants.PREF_METERED_NETWORK_WARNING,
                 prefs.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true)));
@@ -632,6 +653,8 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                     prefs.edit()
                             .putInt(Constants.PREF_AUTO_UPDATES_CHECK_INTERVAL,
                                     autoCheckInterval.getSelectedItemPosition())
+                            .putBoolean(Constants.PREF_AUTO_DOWNLOAD_UPDATES,
+                                    autoDownload.isChecked())
                             .putBoolean(Constants.PREF_AUTO_DELETE_UPDATES, autoDelete.isChecked())
                             .putBoolean(Constants.PREF_METERED_NETWORK_WARNING,
                                     meteredNetworkWarning.isChecked())
@@ -645,6 +668,13 @@ public class UpdatesActivity extends UpdatesListActivity implements UpdateImport
                         UpdatesCheckReceiver.cancelUpdatesCheck(this);
                     }
 
+                    // Fetch what is already available too
+                    if (autoDownload.isChecked()) {
+                        AutoDownloadJobService.scheduleIfEnabled(this);
+                    } else {
+                        AutoDownloadJobService.cancel(this);
+                    }
+
                     if (Utils.isABDevice()) {
                         boolean enableABPerfMode = abPerfMode.isChecked();
                         mUpdaterService.getUpdaterController().setPerformanceMode(enableABPerfMode);
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+
+import org.lineageos.updater.misc.Utils;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Runs the periodic updates check and the ones scheduled after a failure,
+ * see {@link UpdatesCheckReceiver}.
+ */
+public class UpdatesCheckJobService extends JobService {
+
+    // The jobs that are running must not be cancelled or rescheduled by their own check
+    private static final Set<Integer> sRunningJobIds =
+            Collections.synchronizedSet(new HashSet<>());
+
+    static boolean isRunning(int jobId) {
+        return sRunningJobIds.contains(jobId);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        if (!Utils.isUpdateCheckEnabled(this)) {
+            return false;
+        }
+        sRunningJobIds.add(params.getJobId());
+        UpdatesCheckReceiver.checkForUpdates(this, () -> {
+            sRunningJobIds.remove(params.getJobId());
+            jobFinished(params, false);
+            // Apply the changes of the interval skipped while running
+            UpdatesCheckReceiver.scheduleRepeatingUpdatesCheck(this);
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        sRunningJobIds.remove(params.getJobId());
+        // A failed check schedules a new one by itself
+        return false;
+    }
+}
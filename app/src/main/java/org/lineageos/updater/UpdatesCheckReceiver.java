@@ -15,111 +15,84 @@
  */
 package org.lineageos.updater;
 
-import android.app.AlarmManager;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 import androidx.preference.PreferenceManager;
 
-import org.json.JSONException;
-import org.lineageos.updater.download.DownloadClient;
-import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.controller.AutoDownloadJobService;
 import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.UpdateInfo;
 
-import java.io.File;
-import java.io.IOException;
 import java.util.Date;
-import java.util.UUID;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class UpdatesCheckReceiver extends BroadcastReceiver {
 
     private static final String TAG = "UpdatesCheckReceiver";
 
-    private static final String DAILY_CHECK_ACTION = "daily_check_action";
-    private static final String ONESHOT_CHECK_ACTION = "oneshot_check_action";
+    private static final int REPEATING_CHECK_JOB_ID = 5;
+    private static final int ONESHOT_CHECK_JOB_ID = 6;
+
+    private static final String PREF_UPDATES_CHECK_FAILURES = "updates_check_failures";
+    private static final long RETRY_BACKOFF_MIN_MS = TimeUnit.MINUTES.toMillis(15);
+    private static final long RETRY_BACKOFF_MAX_MS = TimeUnit.HOURS.toMillis(12);
 
     private static final String NEW_UPDATES_NOTIFICATION_CHANNEL =
             "new_updates_notification_channel";
 
     @Override
     public void onReceive(final Context context, Intent intent) {
-        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
-            Utils.cleanupDownloadsDir(context);
-        }
-
-        final SharedPreferences preferences =
-                PreferenceManager.getDefaultSharedPreferences(context);
-
-        if (!Utils.isUpdateCheckEnabled(context)) {
+        if (!Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
             return;
         }
 
-        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
-            // Set a repeating alarm on boot to check for new updates once per day
-            scheduleRepeatingUpdatesCheck(context);
-        }
+        Utils.cleanupDownloadsDir(context);
 
-        if (!Utils.isNetworkAvailable(context)) {
-            Log.d(TAG, "Network not available, scheduling new check");
-            scheduleUpdatesCheck(context);
+        if (!Utils.isUpdateCheckEnabled(context)) {
             return;
         }
 
-        final File json = Utils.getCachedUpdateList(context);
-        final File jsonNew = new File(json.getAbsolutePath() + UUID.randomUUID());
-        String url = Utils.getServerURL(context);
-        DownloadClient.DownloadCallback callback = new DownloadClient.DownloadCallback() {
-            @Override
-            public void onFailure(boolean cancelled) {
-                Log.e(TAG, "Could not download updates list, scheduling new check");
-                scheduleUpdatesCheck(context);
-            }
+        // Check for new updates periodically, and once now that we booted
+        scheduleRepeatingUpdatesCheck(context);
+        scheduleUpdatesCheck(context, 0);
+    }
 
+    /**
+     * Download the list of updates and notify the user if there's anything new.
+     * A new check is scheduled if this one fails.
+     *
+     * @param onDone called once the check is over, from a background thread
+     */
+    static void checkForUpdates(final Context context, final Runnable onDone) {
+        UpdateListRepository.getInstance(context).refresh(new UpdateListRepository.Callback() {
             @Override
-            public void onResponse(DownloadClient.Headers headers) {
+            public void onRefreshed(List<UpdateInfo> updates, boolean newUpdates) {
+                if (newUpdates) {
+                    showNotification(context);
+                    AutoDownloadJobService.scheduleIfEnabled(context);
+                }
+                onDone.run();
             }
 
             @Override
-            public void onSuccess() {
-                try {
-                    if (json.exists() && Utils.checkForNewUpdates(json, jsonNew)) {
-                        showNotification(context);
-                        updateRepeatingUpdatesCheck(context);
-                    }
-                    //noinspection ResultOfMethodCallIgnored
-                    jsonNew.renameTo(json);
-                    long currentMillis = System.currentTimeMillis();
-                    preferences.edit()
-                            .putLong(Constants.PREF_LAST_UPDATE_CHECK, currentMillis)
-                            .apply();
-                    // In case we set a one-shot check because of a previous failure
-                    cancelUpdatesCheck(context);
-                } catch (IOException | JSONException e) {
-                    Log.e(TAG, "Could not parse list, scheduling new check", e);
-                    scheduleUpdatesCheck(context);
-                }
+            public void onRefreshFailed() {
+                Log.e(TAG, "Could not refresh updates list, scheduling new check");
+                scheduleUpdatesCheckRetry(context);
+                onDone.run();
             }
-        };
-
-        try {
-            DownloadClient downloadClient = new DownloadClient.Builder()
-                    .setUrl(url)
-                    .setDestination(jsonNew)
-                    .setDownloadCallback(callback)
-                    .build();
-            downloadClient.start();
-        } catch (IOException e) {
-            Log.e(TAG, "Could not fetch list, scheduling new check", e);
-            scheduleUpdatesCheck(context);
-        }
+        });
     }
 
     private static void showNotification(Context context) {
@@ -142,59 +115,86 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
         notificationManager.notify(0, notificationBuilder.build());
     }
 
-    private static PendingIntent getRepeatingUpdatesCheckIntent(Context context) {
-        Intent intent = new Intent(context, UpdatesCheckReceiver.class);
-        intent.setAction(DAILY_CHECK_ACTION);
-        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_IMMUTABLE);
-    }
-
-    public static void updateRepeatingUpdatesCheck(Context context) {
-        cancelRepeatingUpdatesCheck(context);
-        scheduleRepeatingUpdatesCheck(context);
-    }
-
     public static void scheduleRepeatingUpdatesCheck(Context context) {
         if (!Utils.isUpdateCheckEnabled(context)) {
             return;
         }
 
-        PendingIntent updateCheckIntent = getRepeatingUpdatesCheckIntent(context);
-        AlarmManager alarmMgr = context.getSystemService(AlarmManager.class);
-        alarmMgr.setRepeating(AlarmManager.RTC, System.currentTimeMillis() +
-                Utils.getUpdateCheckInterval(context), Utils.getUpdateCheckInterval(context),
-                updateCheckIntent);
+        long interval = Utils.getUpdateCheckInterval(context);
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        JobInfo pendingJob = jobScheduler.getPendingJob(REPEATING_CHECK_JOB_ID);
+        if (pendingJob != null && pendingJob.getIntervalMillis() == interval) {
+            // Rescheduling would restart the period
+            return;
+        }
+        if (UpdatesCheckJobService.isRunning(REPEATING_CHECK_JOB_ID)) {
+            // Rescheduling would stop it, the job reschedules itself once done
+            return;
+        }
 
-        Date nextCheckDate = new Date(System.currentTimeMillis() +
-                Utils.getUpdateCheckInterval(context));
+        // Let the system run the check together with other maintenance work
+        JobInfo jobInfo = new JobInfo.Builder(REPEATING_CHECK_JOB_ID,
+                new ComponentName(context, UpdatesCheckJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setRequiresBatteryNotLow(true)
+                .setPeriodic(interval, interval / 4)
+                .setPersisted(true)
+                .build();
+        if (jobScheduler.schedule(jobInfo) != JobScheduler.RESULT_SUCCESS) {
+            Log.e(TAG, "Could not schedule the automatic updates check");
+            return;
+        }
+
+        Date nextCheckDate = new Date(System.currentTimeMillis() + interval);
         Log.d(TAG, "Setting automatic updates check: " + nextCheckDate);
     }
 
     public static void cancelRepeatingUpdatesCheck(Context context) {
-        AlarmManager alarmMgr = context.getSystemService(AlarmManager.class);
-        alarmMgr.cancel(getRepeatingUpdatesCheckIntent(context));
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        jobScheduler.cancel(REPEATING_CHECK_JOB_ID);
     }
 
-    private static PendingIntent getUpdatesCheckIntent(Context context) {
-        Intent intent = new Intent(context, UpdatesCheckReceiver.class);
-        intent.setAction(ONESHOT_CHECK_ACTION);
-        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_IMMUTABLE);
+    private static void scheduleUpdatesCheckRetry(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        int failures = preferences.getInt(PREF_UPDATES_CHECK_FAILURES, 0);
+        preferences.edit().putInt(PREF_UPDATES_CHECK_FAILURES, failures + 1).apply();
+
+        // Exponential backoff with jitter, so that devices that failed together
+        // don't hit the server again all at the same time
+        long backoff = RETRY_BACKOFF_MIN_MS << Math.min(failures, 10);
+        backoff = Math.min(backoff, RETRY_BACKOFF_MAX_MS);
+        long delay = backoff / 2 + (long) (Math.random() * (backoff / 2));
+        scheduleUpdatesCheck(context, delay);
     }
 
-    public static void scheduleUpdatesCheck(Context context) {
-        long millisToNextCheck = AlarmManager.INTERVAL_HOUR * 2;
-        PendingIntent updateCheckIntent = getUpdatesCheckIntent(context);
-        AlarmManager alarmMgr = context.getSystemService(AlarmManager.class);
-        alarmMgr.set(AlarmManager.ELAPSED_REALTIME,
-                SystemClock.elapsedRealtime() + millisToNextCheck,
-                updateCheckIntent);
+    private static void scheduleUpdatesCheck(Context context, long delay) {
+        // The check waits for a network, no need to poll for one
+        JobInfo jobInfo = new JobInfo.Builder(ONESHOT_CHECK_JOB_ID,
+                new ComponentName(context, UpdatesCheckJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency(delay)
+                .setPersisted(true)
+                .build();
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        if (jobScheduler.schedule(jobInfo) != JobScheduler.RESULT_SUCCESS) {
+            Log.e(TAG, "Could not schedule the one-shot updates check");
+            return;
+        }
 
-        Date nextCheckDate = new Date(System.currentTimeMillis() + millisToNextCheck);
+        Date nextCheckDate = new Date(System.currentTimeMillis() + delay);
         Log.d(TAG, "Setting one-shot updates check: " + nextCheckDate);
     }
 
     public static void cancelUpdatesCheck(Context context) {
-        AlarmManager alarmMgr = context.getSystemService(AlarmManager.class);
-        alarmMgr.cancel(getUpdatesCheckIntent(context));
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .remove(PREF_UPDATES_CHECK_FAILURES)
+                .apply();
+        if (UpdatesCheckJobService.isRunning(ONESHOT_CHECK_JOB_ID)) {
+            // It's over once the check finishes, cancelling would stop it
+            return;
+        }
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        jobScheduler.cancel(ONESHOT_CHECK_JOB_ID);
         Log.d(TAG, "Cancelling pending one-shot check");
     }
 }
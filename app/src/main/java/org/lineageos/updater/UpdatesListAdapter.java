@@ -53,6 +53,7 @@ import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.snackbar.Snackbar;
 
+import org.lineageos.updater.controller.ScheduledInstallJobService;
 import org.lineageos.updater.controller.UpdaterController;
 import org.lineageos.updater.controller.UpdaterService;
 import org.lineageos.updater.misc.BuildInfoUtils;
@@ -189,6 +190,13 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                     update.getFinalizing() ?
                             R.string.finalizing_package :
                             R.string.preparing_ota_first_boot);
+            long eta = update.getInstallEta();
+            if (!notAB && eta > 0) {
+                CharSequence etaString = StringGenerator.formatETA(mActivity, eta * 1000);
+                viewHolder.mProgressText.setText(mActivity.getString(
+                        R.string.list_installing_progress_eta,
+                        viewHolder.mProgressText.getText(), etaString));
+            }
             String percentage = NumberFormat.getPercentInstance().format(
                     update.getInstallProgress() / 100.f);
             viewHolder.mPercentage.setText(percentage);
@@ -309,6 +317,26 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         notifyItemInserted(0);
     }
 
+    /**
+     * Insert the update keeping the list sorted from the newest to the oldest
+     */
+    public void insertItem(String downloadId) {
+        if (mDownloadIds == null) {
+            mDownloadIds = new ArrayList<>();
+        }
+        long timestamp = mUpdaterController.getUpdate(downloadId).getTimestamp();
+        int position = 0;
+        while (position < mDownloadIds.size()) {
+            UpdateInfo update = mUpdaterController.getUpdate(mDownloadIds.get(position));
+            if (update != null && update.getTimestamp() < timestamp) {
+                break;
+            }
+            position++;
+        }
+        mDownloadIds.add(position, downloadId);
+        notifyItemInserted(position);
+    }
+
     public void notifyItemChanged(String downloadId) {
         if (mDownloadIds == null) {
             return;
@@ -468,40 +496,26 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
     }
 
     private AlertDialog.Builder getInstallDialog(final String downloadId) {
-        if (!isBatteryLevelOk()) {
-            Resources resources = mActivity.getResources();
-            String message = resources.getString(R.string.dialog_battery_low_message_pct,
-                    resources.getInteger(R.integer.battery_ok_percentage_discharging),
-                    resources.getInteger(R.integer.battery_ok_percentage_charging));
-            return new AlertDialog.Builder(mActivity)
-                    .setTitle(R.string.dialog_battery_low_title)
-                    .setMessage(message)
-                    .setPositiveButton(android.R.string.ok, null);
-        }
-        if (isScratchMounted()) {
-            return new AlertDialog.Builder(mActivity)
-                    .setTitle(R.string.dialog_scratch_mounted_title)
-                    .setMessage(R.string.dialog_scratch_mounted_message)
-                    .setPositiveButton(android.R.string.ok, null);
+        AlertDialog.Builder blockedDialog = getInstallBlockedDialog();
+        if (blockedDialog != null) {
+            return blockedDialog;
         }
         UpdateInfo update = mUpdaterController.getUpdate(downloadId);
-        int resId;
+        boolean isAB;
         try {
-            if (Utils.isABUpdate(update.getFile())) {
-                resId = R.string.apply_update_dialog_message_ab;
-            } else {
-                resId = R.string.apply_update_dialog_message;
-            }
+            isAB = Utils.isABUpdate(update.getFile());
         } catch (IOException e) {
             Log.e(TAG, "Could not determine the type of the update");
             return null;
         }
+        int resId = isAB ? R.string.apply_update_dialog_message_ab :
+                R.string.apply_update_dialog_message;
 
         String buildDate = StringGenerator.getDateLocalizedUTC(mActivity,
                 DateFormat.MEDIUM, update.getTimestamp());
         String buildInfoText = mActivity.getString(R.string.list_build_version_date,
                 update.getVersion(), buildDate);
-        return new AlertDialog.Builder(mActivity)
+        AlertDialog.Builder builder = new AlertDialog.Builder(mActivity)
                 .setTitle(R.string.apply_update_dialog_title)
                 .setMessage(mActivity.getString(resId, buildInfoText,
                         mActivity.getString(android.R.string.ok)))
@@ -511,6 +525,69 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                             maybeShowInfoDialog();
                         })
                 .setNegativeButton(android.R.string.cancel, null);
+        // A/B updates are installed in the background, they can wait for the night
+        if (isAB) {
+            if (downloadId.equals(
+                    ScheduledInstallJobService.getScheduledDownloadId(mActivity))) {
+                builder.setNeutralButton(R.string.install_scheduled_cancel_button,
+                        (dialog, which) -> {
+                            ScheduledInstallJobService.cancel(mActivity);
+                            mActivity.showSnackbar(R.string.snack_install_schedule_cancelled,
+                                    Snackbar.LENGTH_LONG);
+                        });
+            } else {
+                builder.setNeutralButton(R.string.install_scheduled_button,
+                        (dialog, which) -> {
+                            if (ScheduledInstallJobService.schedule(mActivity, downloadId)) {
+                                mActivity.showSnackbar(R.string.snack_install_scheduled,
+                                        Snackbar.LENGTH_LONG);
+                            }
+                        });
+            }
+        }
+        return builder;
+    }
+
+    private AlertDialog.Builder getStreamingInstallDialog(final String downloadId) {
+        AlertDialog.Builder blockedDialog = getInstallBlockedDialog();
+        if (blockedDialog != null) {
+            return blockedDialog;
+        }
+        UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+        String buildDate = StringGenerator.getDateLocalizedUTC(mActivity,
+                DateFormat.MEDIUM, update.getTimestamp());
+        String buildInfoText = mActivity.getString(R.string.list_build_version_date,
+                update.getVersion(), buildDate);
+        return new AlertDialog.Builder(mActivity)
+                .setTitle(R.string.apply_update_dialog_title)
+                .setMessage(mActivity.getString(R.string.apply_update_dialog_message_streaming,
+                        buildInfoText, mActivity.getString(android.R.string.ok)))
+                .setPositiveButton(android.R.string.ok,
+                        (dialog, which) -> {
+                            Utils.triggerStreamingUpdate(mActivity, downloadId);
+                            maybeShowInfoDialog();
+                        })
+                .setNegativeButton(android.R.string.cancel, null);
+    }
+
+    private AlertDialog.Builder getInstallBlockedDialog() {
+        if (!isBatteryLevelOk()) {
+            Resources resources = mActivity.getResources();
+            String message = resources.getString(R.string.dialog_battery_low_message_pct,
+                    resources.getInteger(R.integer.battery_ok_percentage_discharging),
+                    resources.getInteger(R.integer.battery_ok_percentage_charging));
+            return new AlertDialog.Builder(mActivity)
+                    .setTitle(R.string.dialog_battery_low_title)
+                    .setMessage(message)
+                    .setPositiveButton(android.R.string.ok, null);
+        }
+        if (isScratchMounted()) {
+            return new AlertDialog.Builder(mActivity)
+                    .setTitle(R.string.dialog_scratch_mounted_title)
+                    .setMessage(R.string.dialog_scratch_mounted_message)
+                    .setPositiveButton(android.R.string.ok, null);
+        }
+        return null;
     }
 
     private AlertDialog.Builder getCancelInstallationDialog() {
@@ -559,6 +636,9 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
         menu.findItem(R.id.menu_delete_action).setVisible(shouldShowDelete);
         menu.findItem(R.id.menu_copy_url).setVisible(update.getAvailableOnline());
         menu.findItem(R.id.menu_export_update).setVisible(isVerified);
+        menu.findItem(R.id.menu_install_streaming).setVisible(Utils.isABDevice() &&
+                update.getAvailableOnline() && Utils.canInstall(update) && !isBusy() &&
+                update.getPersistentStatus() == UpdateStatus.Persistent.UNKNOWN);
 
         popupMenu.setOnMenuItemClickListener(item -> {
             int itemId = item.getItemId();
@@ -571,6 +651,13 @@ public class UpdatesListAdapter extends RecyclerView.Adapter<UpdatesListAdapter.
                         update.getDownloadUrl(),
                         mActivity.getString(R.string.toast_download_url_copied));
                 return true;
+            } else if (itemId == R.id.menu_install_streaming) {
+                AlertDialog.Builder installDialog =
+                        getStreamingInstallDialog(update.getDownloadId());
+                if (installDialog != null) {
+                    installDialog.show();
+                }
+                return true;
             } else if (itemId == R.id.menu_export_update) {
                 if (mActivity != null) {
                     mActivity.exportUpdate(update);
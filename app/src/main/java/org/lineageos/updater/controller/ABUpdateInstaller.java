@@ -18,14 +18,17 @@ package org.lineageos.updater.controller;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.ServiceSpecificException;
+import android.os.SystemClock;
 import android.os.UpdateEngine;
 import android.os.UpdateEngineCallback;
-import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.preference.PreferenceManager;
 
+import org.lineageos.updater.download.RemoteZip;
 import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.misc.FileUtils;
+import org.lineageos.updater.misc.PackageMetadata;
 import org.lineageos.updater.misc.Utils;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateStatus;
@@ -35,6 +38,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.ZipEntry;
@@ -44,21 +50,33 @@ class ABUpdateInstaller {
 
     private static final String TAG = "ABUpdateInstaller";
 
-    private static final String PREF_INSTALLING_AB_ID = "installing_ab_id";
-    private static final String PREF_INSTALLING_SUSPENDED_AB_ID = "installing_suspended_ab_id";
+    private static final int MAX_PAYLOAD_PROPERTIES_SIZE = 64 * 1024;
+
+    private static final String PAYLOAD_METADATA_FILE = "payload_metadata.bin";
+    // The update update_engine reserved space for, it only keeps the last reservation
+    private static final String PREF_SPACE_RESERVED_ID = "space_reserved_id";
 
     private static ABUpdateInstaller sInstance = null;
 
     private final UpdaterController mUpdaterController;
     private final Context mContext;
+    private final InstallerState mState;
     private String mDownloadId;
 
     private final UpdateEngine mUpdateEngine;
     private boolean mBound;
 
+    private final PerformanceModePolicy mPerformanceModePolicy;
+    private final InstallProgressEstimator mInstallProgressEstimator;
+
     private boolean mFinalizing;
     private int mProgress;
 
+    // Set until the payload is handed to update_engine
+    private Thread mPreparePayloadThread;
+    // Whether cancel() was called while the payload was being prepared
+    private boolean mPrepareCancelled;
+
     private final UpdateEngineCallback mUpdateEngineCallback = new UpdateEngineCallback() {
 
         @Override
@@ -81,6 +99,8 @@ class ABUpdateInstaller {
                     mUpdaterController.getActualUpdate(mDownloadId).setInstallProgress(mProgress);
                     mFinalizing = status == UpdateEngine.UpdateStatusConstants.FINALIZING;
                     mUpdaterController.getActualUpdate(mDownloadId).setFinalizing(mFinalizing);
+                    mUpdaterController.getActualUpdate(mDownloadId).setInstallEta(
+                            mInstallProgressEstimator.update(mFinalizing, percent));
                     mUpdaterController.notifyInstallProgress(mDownloadId);
                 }
                 break;
@@ -114,33 +134,45 @@ class ABUpdateInstaller {
         }
     };
 
-    static synchronized boolean isInstallingUpdate(Context context) {
-        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
-        return pref.getString(ABUpdateInstaller.PREF_INSTALLING_AB_ID, null) != null ||
-                pref.getString(Constants.PREF_NEEDS_REBOOT_ID, null) != null;
+    private final FileUtils.ProgressCallBack mVerifyProgressCallBack =
+            new FileUtils.ProgressCallBack() {
+        private long mLastUpdate = -1;
+
+        @Override
+        public void update(int progress) {
+            long now = SystemClock.elapsedRealtime();
+            if (mLastUpdate < 0 || now - mLastUpdate > 500) {
+                mUpdaterController.getActualUpdate(mDownloadId).setInstallProgress(progress);
+                mUpdaterController.notifyInstallProgress(mDownloadId);
+                mLastUpdate = now;
+            }
+        }
+    };
+
+    static boolean isInstallingUpdate(Context context) {
+        return InstallerState.getInstance(context).isInstalling();
     }
 
-    static synchronized boolean isInstallingUpdate(Context context, String downloadId) {
-        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
-        return downloadId.equals(pref.getString(ABUpdateInstaller.PREF_INSTALLING_AB_ID, null)) ||
-                TextUtils.equals(pref.getString(Constants.PREF_NEEDS_REBOOT_ID, null), downloadId);
+    static boolean isInstallingUpdate(Context context, String downloadId) {
+        return InstallerState.getInstance(context).isInstalling(downloadId);
     }
 
-    static synchronized boolean isInstallingUpdateSuspended(Context context) {
-        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
-        return pref.getString(ABUpdateInstaller.PREF_INSTALLING_SUSPENDED_AB_ID, null) != null;
+    static boolean isInstallingUpdateSuspended(Context context) {
+        return InstallerState.getInstance(context).isSuspended();
     }
 
-    static synchronized boolean isWaitingForReboot(Context context, String downloadId) {
-        String waitingId = PreferenceManager.getDefaultSharedPreferences(context)
-                .getString(Constants.PREF_NEEDS_REBOOT_ID, null);
-        return TextUtils.equals(waitingId, downloadId);
+    static boolean isWaitingForReboot(Context context, String downloadId) {
+        return InstallerState.getInstance(context).isWaitingForReboot(downloadId);
     }
 
     private ABUpdateInstaller(Context context, UpdaterController updaterController) {
         mUpdaterController = updaterController;
         mContext = context.getApplicationContext();
+        mState = InstallerState.getInstance(mContext);
         mUpdateEngine = new UpdateEngine();
+        mPerformanceModePolicy = new PerformanceModePolicy(mContext,
+                mUpdateEngine::setPerformanceMode);
+        mInstallProgressEstimator = new InstallProgressEstimator(mContext);
     }
 
     static synchronized ABUpdateInstaller getInstance(Context context,
@@ -174,21 +206,9 @@ class ABUpdateInstaller {
 
         long offset;
         String[] headerKeyValuePairs;
-        try {
-            ZipFile zipFile = new ZipFile(file);
+        try (ZipFile zipFile = new ZipFile(file)) {
             offset = Utils.getZipEntryOffset(zipFile, Constants.AB_PAYLOAD_BIN_PATH);
-            ZipEntry payloadPropEntry = zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
-            try (InputStream is = zipFile.getInputStream(payloadPropEntry);
-                 InputStreamReader isr = new InputStreamReader(is);
-                 BufferedReader br = new BufferedReader(isr)) {
-                List<String> lines = new ArrayList<>();
-                for (String line; (line = br.readLine()) != null;) {
-                    lines.add(line);
-                }
-                headerKeyValuePairs = new String[lines.size()];
-                headerKeyValuePairs = lines.toArray(headerKeyValuePairs);
-            }
-            zipFile.close();
+            headerKeyValuePairs = readPayloadProperties(zipFile);
         } catch (IOException | IllegalArgumentException e) {
             Log.e(TAG, "Could not prepare " + file, e);
             mUpdaterController.getActualUpdate(mDownloadId)
@@ -197,24 +217,171 @@ class ABUpdateInstaller {
             return;
         }
 
+        mState.setInstalling(mDownloadId);
+        // The installation takes over whatever space was reserved
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .remove(PREF_SPACE_RESERVED_ID)
+                .apply();
+
+        mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
+        mUpdaterController.notifyUpdateChange(mDownloadId);
+
+        // Hashing the payload takes a while, don't block the caller
+        final long payloadOffset = offset;
+        final String[] payloadProperties = headerKeyValuePairs;
+        mPreparePayloadThread = new Thread(() -> {
+            boolean valid;
+            try {
+                valid = PayloadVerifier.verify(file, payloadOffset, payloadProperties,
+                        mVerifyProgressCallBack);
+            } catch (InterruptedException e) {
+                valid = false;
+            } catch (IOException e) {
+                Log.e(TAG, "Could not verify the payload of " + file, e);
+                valid = false;
+            }
+
+            mUpdaterController.getActualUpdate(mDownloadId).setInstallProgress(0);
+            if (isPrepareCancelled()) {
+                onPreparePayloadCancelled();
+                return;
+            }
+            if (!valid) {
+                onPreparePayloadDone();
+                installationDone(false);
+                mUpdaterController.getActualUpdate(mDownloadId)
+                        .setStatus(UpdateStatus.INSTALLATION_FAILED);
+                mUpdaterController.notifyUpdateChange(mDownloadId);
+                return;
+            }
+            applyPayload("file://" + file.getAbsolutePath(), payloadOffset, 0,
+                    payloadProperties);
+            if (onPreparePayloadDone()) {
+                cancel();
+            }
+        });
+        mPreparePayloadThread.start();
+    }
+
+    /**
+     * Install the given update without downloading it. update_engine streams the
+     * payload directly from the server, we only need to find where it starts.
+     */
+    public void installStreaming(String downloadId) {
+        if (isInstallingUpdate(mContext)) {
+            Log.e(TAG, "Already installing an update");
+            return;
+        }
+
+        mDownloadId = downloadId;
+        Update update = mUpdaterController.getActualUpdate(mDownloadId);
+
+        mState.setInstalling(mDownloadId);
+
+        update.setInstallProgress(0);
+        update.setStatus(UpdateStatus.INSTALLING);
+        mUpdaterController.notifyUpdateChange(mDownloadId);
+
+        mPreparePayloadThread = new Thread(() -> {
+            String url;
+            long offset;
+            long size;
+            String[] headerKeyValuePairs;
+            try {
+                RemoteZip zip = RemoteZip.get(mDownloadId, update.getDownloadUrl(),
+                        update.getFileSize());
+                url = zip.getUrl();
+                // Don't hand update_engine a package meant for recovery
+                if (!PackageMetadata.read(zip).isAB()) {
+                    throw new IOException("Not an A/B update");
+                }
+                RemoteZip.Entry payloadEntry = zip.getEntry(Constants.AB_PAYLOAD_BIN_PATH);
+                RemoteZip.Entry payloadPropEntry =
+                        zip.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+                if (payloadEntry == null || payloadPropEntry == null) {
+                    throw new IOException("Not an A/B update");
+                }
+                if (payloadEntry.getMethod() != ZipEntry.STORED) {
+                    throw new IOException("The payload is compressed");
+                }
+                offset = zip.getDataOffset(payloadEntry);
+                size = payloadEntry.getSize();
+                String properties = new String(zip.read(payloadPropEntry,
+                        MAX_PAYLOAD_PROPERTIES_SIZE), StandardCharsets.UTF_8);
+                headerKeyValuePairs = properties.split("\n");
+            } catch (IOException e) {
+                Log.e(TAG, "Could not prepare the streaming of " + update.getDownloadUrl(), e);
+                if (isPrepareCancelled()) {
+                    onPreparePayloadCancelled();
+                    return;
+                }
+                onPreparePayloadDone();
+                installationDone(false);
+                update.setStatus(UpdateStatus.INSTALLATION_FAILED);
+                mUpdaterController.notifyUpdateChange(mDownloadId);
+                return;
+            }
+
+            if (isPrepareCancelled()) {
+                onPreparePayloadCancelled();
+                return;
+            }
+            // The integrity of the payload is checked by update_engine as it arrives
+            applyPayload(url, offset, size, headerKeyValuePairs);
+            if (onPreparePayloadDone()) {
+                cancel();
+            }
+        });
+        mPreparePayloadThread.start();
+    }
+
+    private synchronized boolean isPrepareCancelled() {
+        return mPrepareCancelled;
+    }
+
+    /**
+     * Called by the thread preparing the payload once it's done with it
+     *
+     * @return whether cancel() was called while the payload was being handed
+     *         to update_engine, in which case it has to be called again
+     */
+    private synchronized boolean onPreparePayloadDone() {
+        boolean cancelled = mPrepareCancelled;
+        mPreparePayloadThread = null;
+        mPrepareCancelled = false;
+        return cancelled;
+    }
+
+    private void onPreparePayloadCancelled() {
+        Log.d(TAG, "Installation cancelled while preparing the payload");
+        onPreparePayloadDone();
+        installationDone(false);
+        Update update = mUpdaterController.getActualUpdate(mDownloadId);
+        update.setInstallProgress(0);
+        update.setStatus(UpdateStatus.INSTALLATION_CANCELLED);
+        mUpdaterController.notifyUpdateChange(mDownloadId);
+    }
+
+    private void applyPayload(String uri, long offset, long size, String[] headerKeyValuePairs) {
         if (!mBound) {
             mBound = mUpdateEngine.bind(mUpdateEngineCallback);
             if (!mBound) {
                 Log.e(TAG, "Could not bind");
-                mUpdaterController.getActualUpdate(downloadId)
+                installationDone(false);
+                mUpdaterController.getActualUpdate(mDownloadId)
                         .setStatus(UpdateStatus.INSTALLATION_FAILED);
-                mUpdaterController.notifyUpdateChange(downloadId);
+                mUpdaterController.notifyUpdateChange(mDownloadId);
                 return;
             }
         }
 
         boolean enableABPerfMode = PreferenceManager.getDefaultSharedPreferences(mContext)
                 .getBoolean(Constants.PREF_AB_PERF_MODE, false);
-        mUpdateEngine.setPerformanceMode(enableABPerfMode);
+        mPerformanceModePolicy.start(enableABPerfMode);
+        mInstallProgressEstimator.start();
 
-        String zipFileUri = "file://" + file.getAbsolutePath();
         try {
-            mUpdateEngine.applyPayload(zipFileUri, offset, 0, headerKeyValuePairs);
+            mUpdateEngine.applyPayload(uri, offset, size, headerKeyValuePairs);
         } catch (ServiceSpecificException e) {
             if (e.errorCode == 66 /* kUpdateAlreadyInstalled */) {
                 installationDone(true);
@@ -224,14 +391,117 @@ class ABUpdateInstaller {
             }
             throw e;
         }
+    }
 
-        mUpdaterController.getActualUpdate(mDownloadId).setStatus(UpdateStatus.INSTALLING);
-        mUpdaterController.notifyUpdateChange(mDownloadId);
+    private static String[] readPayloadProperties(ZipFile zipFile) throws IOException {
+        ZipEntry payloadPropEntry = zipFile.getEntry(Constants.AB_PAYLOAD_PROPERTIES_PATH);
+        try (InputStream is = zipFile.getInputStream(payloadPropEntry);
+             InputStreamReader isr = new InputStreamReader(is);
+             BufferedReader br = new BufferedReader(isr)) {
+            List<String> lines = new ArrayList<>();
+            for (String line; (line = br.readLine()) != null;) {
+                lines.add(line);
+            }
+            String[] headerKeyValuePairs = new String[lines.size()];
+            return lines.toArray(headerKeyValuePairs);
+        }
+    }
 
-        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
-                .putString(PREF_INSTALLING_AB_ID, mDownloadId)
-                .apply();
+    /**
+     * Ask update_engine to reserve the space needed to apply the given package,
+     * so that a lack of space is found out before the installation starts.
+     * This blocks until update_engine is done, don't call it from the main thread.
+     *
+     * The space stays reserved until releaseSpace() is called or another
+     * update is installed or reserved space for.
+     *
+     * @param file the update package
+     * @param downloadId the ID of the update
+     * @return the number of bytes to free, 0 if the space is available, -1 on errors
+     */
+    long allocateSpace(File file, String downloadId) {
+        if (isInstallingUpdate(mContext)) {
+            // Don't interfere with the update being applied
+            return -1;
+        }
 
+        File metadataFile = new File(Utils.getDownloadPath(mContext), PAYLOAD_METADATA_FILE);
+        try (ZipFile zipFile = new ZipFile(file)) {
+            if (!Utils.isABUpdate(zipFile)) {
+                return 0;
+            }
+            long offset = Utils.getZipEntryOffset(zipFile, Constants.AB_PAYLOAD_BIN_PATH);
+            String[] headerKeyValuePairs = readPayloadProperties(zipFile);
+            long metadataSize = PayloadVerifier.getMetadataSize(headerKeyValuePairs);
+            if (metadataSize <= 0) {
+                Log.e(TAG, "Unknown payload metadata size, can't allocate space");
+                return -1;
+            }
+
+            // update_engine only needs the metadata, it has to be able to read it
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                 FileChannel destination = FileChannel.open(metadataFile.toPath(),
+                         StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                long position = 0;
+                while (position < metadataSize) {
+                    long count = source.transferTo(offset + position, metadataSize - position,
+                            destination);
+                    if (count <= 0) {
+                        throw new IOException("Could not extract the payload metadata");
+                    }
+                    position += count;
+                }
+            }
+            //noinspection ResultOfMethodCallIgnored
+            metadataFile.setReadable(true, false);
+
+            UpdateEngine.AllocateSpaceResult result = mUpdateEngine.allocateSpace(
+                    metadataFile.getAbsolutePath(), headerKeyValuePairs);
+            switch (result.getErrorCode()) {
+                case UpdateEngine.ErrorCodeConstants.SUCCESS:
+                    PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                            .putString(PREF_SPACE_RESERVED_ID, downloadId)
+                            .apply();
+                    return 0;
+                case UpdateEngine.ErrorCodeConstants.NOT_ENOUGH_SPACE:
+                    Log.e(TAG, "Not enough space, " + result.getFreeSpaceRequired() +
+                            " bytes required");
+                    return result.getFreeSpaceRequired();
+                default:
+                    Log.e(TAG, "Could not allocate space, error " + result.getErrorCode());
+                    return -1;
+            }
+        } catch (IOException | IllegalArgumentException | ServiceSpecificException e) {
+            Log.e(TAG, "Could not allocate space for " + file, e);
+            return -1;
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            metadataFile.delete();
+        }
+    }
+
+    /**
+     * Release the space reserved with allocateSpace(), if it was reserved for
+     * the given update. This blocks, don't call it from the main thread.
+     */
+    void releaseSpace(String downloadId) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        if (!downloadId.equals(preferences.getString(PREF_SPACE_RESERVED_ID, null))) {
+            return;
+        }
+        preferences.edit().remove(PREF_SPACE_RESERVED_ID).apply();
+        if (isInstallingUpdate(mContext) || mState.isWaitingForReboot()) {
+            // Resetting now would throw away the update being applied
+            return;
+        }
+        try {
+            // This cancels the snapshots created when allocating the space
+            mUpdateEngine.resetStatus();
+            Log.d(TAG, "Released the space reserved for " + downloadId);
+        } catch (ServiceSpecificException e) {
+            Log.e(TAG, "Could not release the space reserved for " + downloadId, e);
+        }
     }
 
     public void reconnect() {
@@ -244,24 +514,40 @@ class ABUpdateInstaller {
             return;
         }
 
-        mDownloadId = PreferenceManager.getDefaultSharedPreferences(mContext)
-                .getString(PREF_INSTALLING_AB_ID, null);
+        synchronized (this) {
+            if (mPreparePayloadThread != null) {
+                // Not handed to update_engine yet, nothing to reconnect to
+                return;
+            }
+        }
+
+        mDownloadId = mState.getInstallingId();
 
         // We will get a status notification as soon as we are connected
         mBound = mUpdateEngine.bind(mUpdateEngineCallback);
         if (!mBound) {
             Log.e(TAG, "Could not bind");
+            return;
         }
 
+        boolean enableABPerfMode = PreferenceManager.getDefaultSharedPreferences(mContext)
+                .getBoolean(Constants.PREF_AB_PERF_MODE, false);
+        mPerformanceModePolicy.start(enableABPerfMode);
+
     }
 
     private void installationDone(boolean needsReboot) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
-        String id = needsReboot ? mDownloadId : null;
-        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
-                .putString(Constants.PREF_NEEDS_REBOOT_ID, id)
-                .remove(PREF_INSTALLING_AB_ID)
-                .apply();
+        // The mirror may have failed or its URL may expire, resolve it again next time
+        RemoteZip.invalidate(mDownloadId);
+        mPerformanceModePolicy.stop();
+        mInstallProgressEstimator.finish(needsReboot);
+        if (needsReboot) {
+            // The space of the snapshots can be released once the update is merged
+            PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                    .putBoolean(Constants.PREF_CLEANUP_APPLIED_PAYLOADS, true)
+                    .apply();
+        }
+        mState.setInstallationDone(needsReboot ? mDownloadId : null);
     }
 
     public void cancel() {
@@ -270,6 +556,15 @@ class ABUpdateInstaller {
             return;
         }
 
+        synchronized (this) {
+            if (mPreparePayloadThread != null) {
+                // The payload hasn't been handed to update_engine yet
+                mPrepareCancelled = true;
+                mPreparePayloadThread.interrupt();
+                return;
+            }
+        }
+
         if (!mBound) {
             Log.e(TAG, "Not connected to update engine");
             return;
@@ -285,7 +580,7 @@ class ABUpdateInstaller {
     }
 
     public void setPerformanceMode(boolean enable) {
-        mUpdateEngine.setPerformanceMode(enable);
+        mPerformanceModePolicy.setUserPreference(enable);
     }
 
     public void suspend() {
@@ -294,20 +589,26 @@ class ABUpdateInstaller {
             return;
         }
 
+        synchronized (this) {
+            if (mPreparePayloadThread != null) {
+                Log.e(TAG, "suspend: The payload is still being prepared");
+                return;
+            }
+        }
+
         if (!mBound) {
             Log.e(TAG, "Not connected to update engine");
             return;
         }
 
         mUpdateEngine.suspend();
+        mInstallProgressEstimator.suspend();
 
         mUpdaterController.getActualUpdate(mDownloadId)
                 .setStatus(UpdateStatus.INSTALLATION_SUSPENDED);
         mUpdaterController.notifyUpdateChange(mDownloadId);
 
-        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
-                .putString(PREF_INSTALLING_SUSPENDED_AB_ID, mDownloadId)
-                .apply();
+        mState.setSuspended(mDownloadId);
 
     }
 
@@ -330,9 +631,7 @@ class ABUpdateInstaller {
         mUpdaterController.getActualUpdate(mDownloadId).setFinalizing(mFinalizing);
         mUpdaterController.notifyInstallProgress(mDownloadId);
 
-        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
-                .remove(PREF_INSTALLING_SUSPENDED_AB_ID)
-                .apply();
+        mState.setSuspended(null);
 
     }
 }
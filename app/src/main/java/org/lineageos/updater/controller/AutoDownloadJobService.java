@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import org.lineageos.updater.misc.Constants;
+
+/**
+ * Downloads the newest update in the background once it's found, so that
+ * users are offered an update that is already verified and ready to be
+ * installed. It only runs on unmetered networks while the device is charging.
+ */
+public class AutoDownloadJobService extends JobService {
+
+    private static final String TAG = "AutoDownloadJobService";
+
+    private static final int JOB_ID = 4;
+
+    public static boolean isEnabled(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(Constants.PREF_AUTO_DOWNLOAD_UPDATES, false);
+    }
+
+    public static void scheduleIfEnabled(Context context) {
+        if (!isEnabled(context)) {
+            return;
+        }
+        JobInfo jobInfo = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, AutoDownloadJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        if (jobScheduler.schedule(jobInfo) != JobScheduler.RESULT_SUCCESS) {
+            Log.e(TAG, "Could not schedule the download of the latest update");
+        }
+    }
+
+    public static void cancel(Context context) {
+        context.getSystemService(JobScheduler.class).cancel(JOB_ID);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        if (!isEnabled(this)) {
+            return false;
+        }
+        Intent intent = new Intent(this, UpdaterService.class);
+        intent.setAction(UpdaterService.ACTION_DOWNLOAD_LATEST);
+        UpdaterService.startFromJob(this, intent);
+        return false;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+/**
+ * Estimates the time left to apply an A/B update. update_engine reports the
+ * progress of the downloading and of the finalizing phase separately, so each
+ * phase is timed on its own. The duration of the phases of the previous
+ * installs gives an estimate until the current rate is known and covers the
+ * phases that haven't started yet.
+ */
+class InstallProgressEstimator {
+
+    private static final String TAG = "InstallProgressEstimator";
+
+    private static final String PREF_DOWNLOADING_DURATION = "install_downloading_duration";
+    private static final String PREF_FINALIZING_DURATION = "install_finalizing_duration";
+    private static final String PREF_LAST_DOWNLOADING_DURATION =
+            "install_last_downloading_duration";
+    private static final String PREF_LAST_FINALIZING_DURATION =
+            "install_last_finalizing_duration";
+
+    private static final long SAMPLE_INTERVAL_MS = 500;
+
+    private final SharedPreferences mPrefs;
+
+    private boolean mFinalizing;
+    private long mPhaseStart = -1;
+    private long mDownloadingDuration = -1;
+    // Whether the phases were timed from their start without interruptions
+    private boolean mComplete;
+
+    private long mLastMillis = -1;
+    private float mLastProgress;
+    // Fraction of the current phase completed per second
+    private float mSpeed = -1;
+
+    InstallProgressEstimator(Context context) {
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+    }
+
+    /**
+     * Called when the payload is handed to update_engine
+     */
+    synchronized void start() {
+        mFinalizing = false;
+        mPhaseStart = SystemClock.elapsedRealtime();
+        mDownloadingDuration = -1;
+        mComplete = true;
+        resetRate();
+    }
+
+    /**
+     * Called when the installation is suspended, the time spent suspended must
+     * not count
+     */
+    synchronized void suspend() {
+        mComplete = false;
+        resetRate();
+    }
+
+    /**
+     * Update the estimate with the latest status reported by update_engine
+     *
+     * @param finalizing whether update_engine is finalizing the update
+     * @param progress the progress of the current phase, between 0 and 1
+     * @return the estimated number of seconds left, or -1 if unknown
+     */
+    synchronized long update(boolean finalizing, float progress) {
+        final long now = SystemClock.elapsedRealtime();
+        if (mPhaseStart < 0) {
+            // We reconnected to an installation already in progress
+            mPhaseStart = now;
+            mFinalizing = finalizing;
+            mComplete = false;
+        } else if (finalizing != mFinalizing) {
+            if (finalizing && mComplete) {
+                mDownloadingDuration = now - mPhaseStart;
+            }
+            mPhaseStart = now;
+            mFinalizing = finalizing;
+            resetRate();
+        }
+
+        if (mLastMillis < 0) {
+            mLastMillis = now;
+            mLastProgress = progress;
+        } else if (now - mLastMillis > SAMPLE_INTERVAL_MS && progress > mLastProgress) {
+            float curSpeed = (progress - mLastProgress) * 1000 / (now - mLastMillis);
+            if (mSpeed < 0) {
+                mSpeed = curSpeed;
+            } else {
+                mSpeed = ((mSpeed * 3) + curSpeed) / 4;
+            }
+            mLastMillis = now;
+            mLastProgress = progress;
+        }
+
+        long eta;
+        if (mSpeed > 0) {
+            eta = (long) ((1 - progress) / mSpeed);
+        } else {
+            long expectedDuration = mPrefs.getLong(mFinalizing ?
+                    PREF_FINALIZING_DURATION : PREF_DOWNLOADING_DURATION, -1);
+            if (expectedDuration <= 0) {
+                return -1;
+            }
+            eta = (long) (expectedDuration * (1 - progress) / 1000);
+        }
+        if (!mFinalizing) {
+            long finalizingDuration = mPrefs.getLong(PREF_FINALIZING_DURATION, -1);
+            if (finalizingDuration > 0) {
+                eta += finalizingDuration / 1000;
+            }
+        }
+        return Math.max(eta, 0);
+    }
+
+    /**
+     * Called when the installation is over. The duration of the phases of
+     * successful installations is kept to improve the next estimates.
+     */
+    synchronized void finish(boolean success) {
+        if (success && mComplete && mFinalizing && mDownloadingDuration > 0) {
+            long finalizingDuration = SystemClock.elapsedRealtime() - mPhaseStart;
+            Log.i(TAG, "Update applied in " + (mDownloadingDuration + finalizingDuration) +
+                    " ms: downloading " + mDownloadingDuration + " ms, finalizing " +
+                    finalizingDuration + " ms");
+            mPrefs.edit()
+                    .putLong(PREF_DOWNLOADING_DURATION, smooth(PREF_DOWNLOADING_DURATION,
+                            mDownloadingDuration))
+                    .putLong(PREF_FINALIZING_DURATION, smooth(PREF_FINALIZING_DURATION,
+                            finalizingDuration))
+                    .putLong(PREF_LAST_DOWNLOADING_DURATION, mDownloadingDuration)
+                    .putLong(PREF_LAST_FINALIZING_DURATION, finalizingDuration)
+                    .apply();
+        }
+        mPhaseStart = -1;
+        mComplete = false;
+        resetRate();
+    }
+
+    private long smooth(String key, long duration) {
+        long previous = mPrefs.getLong(key, -1);
+        return previous > 0 ? ((previous * 3) + duration) / 4 : duration;
+    }
+
+    private void resetRate() {
+        mLastMillis = -1;
+        mSpeed = -1;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import androidx.preference.PreferenceManager;
+
+import org.lineageos.updater.misc.Constants;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The state of the A/B installation. It's read while binding every item of the
+ * list and on every progress update, so it's kept in memory and only written
+ * through to the preferences to survive restarts. Reads don't take any lock.
+ */
+public final class InstallerState {
+
+    private static final String PREF_INSTALLING_AB_ID = "installing_ab_id";
+    private static final String PREF_INSTALLING_SUSPENDED_AB_ID = "installing_suspended_ab_id";
+
+    public interface Listener {
+        void onInstallerStateChanged();
+    }
+
+    private static volatile InstallerState sInstance = null;
+
+    private final SharedPreferences mPrefs;
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    private volatile String mInstallingId;
+    private volatile String mSuspendedId;
+    private volatile String mNeedsRebootId;
+
+    private InstallerState(Context context) {
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        mInstallingId = mPrefs.getString(PREF_INSTALLING_AB_ID, null);
+        mSuspendedId = mPrefs.getString(PREF_INSTALLING_SUSPENDED_AB_ID, null);
+        mNeedsRebootId = mPrefs.getString(Constants.PREF_NEEDS_REBOOT_ID, null);
+    }
+
+    public static InstallerState getInstance(Context context) {
+        InstallerState instance = sInstance;
+        if (instance == null) {
+            synchronized (InstallerState.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = new InstallerState(context.getApplicationContext());
+                    sInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return the ID of the update being installed, or null
+     */
+    public String getInstallingId() {
+        return mInstallingId;
+    }
+
+    /**
+     * @return whether an update is being installed or was installed and
+     * waits for a reboot
+     */
+    public boolean isInstalling() {
+        return mInstallingId != null || mNeedsRebootId != null;
+    }
+
+    public boolean isInstalling(String downloadId) {
+        return TextUtils.equals(mInstallingId, downloadId) ||
+                TextUtils.equals(mNeedsRebootId, downloadId);
+    }
+
+    public boolean isSuspended() {
+        return mSuspendedId != null;
+    }
+
+    public boolean isWaitingForReboot() {
+        return mNeedsRebootId != null;
+    }
+
+    public boolean isWaitingForReboot(String downloadId) {
+        return TextUtils.equals(mNeedsRebootId, downloadId);
+    }
+
+    void setInstalling(String downloadId) {
+        synchronized (this) {
+            mInstallingId = downloadId;
+            mPrefs.edit().putString(PREF_INSTALLING_AB_ID, downloadId).apply();
+        }
+        notifyListeners();
+    }
+
+    void setSuspended(String downloadId) {
+        synchronized (this) {
+            mSuspendedId = downloadId;
+            mPrefs.edit().putString(PREF_INSTALLING_SUSPENDED_AB_ID, downloadId).apply();
+        }
+        notifyListeners();
+    }
+
+    /**
+     * @param needsRebootId the ID of the update that was installed, null if
+     *                      the installation failed or was cancelled
+     */
+    void setInstallationDone(String needsRebootId) {
+        synchronized (this) {
+            mInstallingId = null;
+            mNeedsRebootId = needsRebootId;
+            mPrefs.edit()
+                    .putString(Constants.PREF_NEEDS_REBOOT_ID, needsRebootId)
+                    .remove(PREF_INSTALLING_AB_ID)
+                    .apply();
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Called once the device rebooted, whatever was installed is now either
+     * running or failed to boot
+     */
+    public void clearNeedsReboot() {
+        synchronized (this) {
+            mNeedsRebootId = null;
+            mPrefs.edit().remove(Constants.PREF_NEEDS_REBOOT_ID).apply();
+        }
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        for (Listener listener : mListeners) {
+            listener.onInstallerStateChanged();
+        }
+    }
+}
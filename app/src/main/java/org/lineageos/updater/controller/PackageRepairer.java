@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.lineageos.updater.download.HttpRangeClient;
+import org.lineageos.updater.misc.FileHasher;
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixes a downloaded package that failed the verification using the chunk
+ * manifest advertised by the server. Every chunk is hashed and only the ones
+ * that don't match are downloaded again.
+ */
+class PackageRepairer {
+
+    private static final String TAG = "PackageRepairer";
+
+    // A manifest is one hash per chunk, this is plenty for any sane chunk size
+    private static final int MAX_MANIFEST_SIZE = 1024 * 1024;
+
+    private PackageRepairer() {
+    }
+
+    /**
+     * Try to repair the downloaded file of the given update
+     *
+     * @param update the update, its file must be complete
+     * @return true if some chunks were downloaded again, false if the file
+     *         couldn't or didn't need to be repaired
+     */
+    static boolean repair(UpdateInfo update) {
+        String manifestUrl = update.getChunkManifestUrl();
+        File file = update.getFile();
+        if (manifestUrl == null || manifestUrl.isEmpty() || file == null || !file.exists()) {
+            return false;
+        }
+
+        try {
+            JSONObject manifest = new JSONObject(new String(
+                    HttpRangeClient.get(manifestUrl, MAX_MANIFEST_SIZE),
+                    StandardCharsets.UTF_8));
+            int chunkSize = manifest.getInt("chunk_size");
+            JSONArray chunks = manifest.getJSONArray("chunks");
+            long fileSize = update.getFileSize();
+            if (chunkSize <= 0 || fileSize <= 0 ||
+                    chunks.length() != (fileSize + chunkSize - 1) / chunkSize) {
+                Log.e(TAG, "The chunk manifest doesn't match the update");
+                return false;
+            }
+            if (file.length() != fileSize) {
+                Log.e(TAG, "Unexpected file size " + file.length() + ", expected " + fileSize);
+                return false;
+            }
+
+            FileHasher.TreeHash treeHash = FileHasher.treeHash(file, chunkSize, null);
+            List<Integer> badChunks = new ArrayList<>();
+            for (int i = 0; i < chunks.length(); i++) {
+                byte[] expected = FileHasher.fromHex(chunks.getString(i));
+                if (!MessageDigest.isEqual(expected, treeHash.getChunkHash(i))) {
+                    badChunks.add(i);
+                }
+            }
+            if (badChunks.isEmpty()) {
+                Log.d(TAG, "All the chunks match, nothing to repair");
+                return false;
+            }
+
+            Log.d(TAG, "Downloading " + badChunks.size() + " of " + chunks.length() +
+                    " chunks again");
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.WRITE)) {
+                for (int chunk : badChunks) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    long start = (long) chunk * chunkSize;
+                    HttpRangeClient.copyRange(update.getDownloadUrl(), start,
+                            Math.min(chunkSize, fileSize - start), channel);
+                }
+                channel.force(false);
+            }
+            return true;
+        } catch (IOException | JSONException | IllegalArgumentException e) {
+            Log.e(TAG, "Could not repair " + file, e);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Repair interrupted");
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+}
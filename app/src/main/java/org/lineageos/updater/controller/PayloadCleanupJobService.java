@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.UpdateEngine;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import org.lineageos.updater.misc.Constants;
+
+/**
+ * Releases the space used by the snapshots of the last applied A/B update.
+ * update_engine does it by itself when the merge completes, but only the next
+ * time it's asked to do something, so ask it right after booting the update.
+ */
+public class PayloadCleanupJobService extends JobService {
+
+    private static final String TAG = "PayloadCleanupJobService";
+
+    private static final int JOB_ID = 1;
+
+    static boolean isCleanupNeeded(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(Constants.PREF_CLEANUP_APPLIED_PAYLOADS, false);
+    }
+
+    public static void scheduleIfNeeded(Context context) {
+        if (!isCleanupNeeded(context)) {
+            return;
+        }
+        JobInfo jobInfo = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, PayloadCleanupJobService.class))
+                .setBackoffCriteria(JobInfo.DEFAULT_INITIAL_BACKOFF_MILLIS,
+                        JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+                .build();
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        if (jobScheduler.schedule(jobInfo) != JobScheduler.RESULT_SUCCESS) {
+            Log.e(TAG, "Could not schedule the cleanup of applied payloads");
+        }
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        if (!isCleanupNeeded(this)) {
+            return false;
+        }
+        new Thread(() -> {
+            // This blocks until the snapshots are merged
+            int result = new UpdateEngine().cleanupAppliedPayloads();
+            boolean success = result == UpdateEngine.ErrorCodeConstants.SUCCESS;
+            if (success) {
+                Log.d(TAG, "Applied payloads cleaned up");
+                SharedPreferences preferences =
+                        PreferenceManager.getDefaultSharedPreferences(this);
+                preferences.edit().remove(Constants.PREF_CLEANUP_APPLIED_PAYLOADS).apply();
+            } else {
+                Log.e(TAG, "Could not clean up applied payloads, error " + result);
+            }
+            jobFinished(params, !success);
+        }).start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // update_engine will go on by itself, try again later to get the result
+        return isCleanupNeeded(this);
+    }
+}
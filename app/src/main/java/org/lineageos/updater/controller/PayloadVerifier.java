@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.util.Log;
+
+import org.lineageos.updater.misc.FileHasher;
+import org.lineageos.updater.misc.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks payload.bin against the hashes listed in payload_properties.txt before
+ * handing it to update_engine, so that a corrupted payload is rejected right away
+ * instead of failing halfway through the installation.
+ */
+class PayloadVerifier {
+
+    private static final String TAG = "PayloadVerifier";
+
+    private static final String KEY_FILE_HASH = "FILE_HASH";
+    private static final String KEY_FILE_SIZE = "FILE_SIZE";
+    private static final String KEY_METADATA_HASH = "METADATA_HASH";
+    private static final String KEY_METADATA_SIZE = "METADATA_SIZE";
+
+    private PayloadVerifier() {
+    }
+
+    /**
+     * Verify the payload stored in the given file
+     *
+     * @param file the update package
+     * @param offset offset of payload.bin inside the package
+     * @param headerKeyValuePairs the lines of payload_properties.txt
+     * @param progressCallBack optional callback, can be null
+     * @return false if the payload doesn't match the advertised hashes
+     * @throws IOException if the payload couldn't be read
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    static boolean verify(File file, long offset, String[] headerKeyValuePairs,
+            FileUtils.ProgressCallBack progressCallBack)
+            throws IOException, InterruptedException {
+        Map<String, String> properties = parseProperties(headerKeyValuePairs);
+        byte[] fileHash = decodeHash(properties.get(KEY_FILE_HASH));
+        byte[] metadataHash = decodeHash(properties.get(KEY_METADATA_HASH));
+        long fileSize = parseSize(properties.get(KEY_FILE_SIZE));
+        long metadataSize = parseSize(properties.get(KEY_METADATA_SIZE));
+        if (fileHash == null || fileSize <= 0) {
+            // Nothing we can check without the size, update_engine will do it anyway
+            Log.w(TAG, "No payload hash available, skipping verification");
+            return true;
+        }
+        if (metadataHash == null || metadataSize <= 0 || metadataSize > fileSize) {
+            metadataHash = null;
+            metadataSize = 0;
+        }
+
+        if (offset < 0 || offset + fileSize > file.length()) {
+            Log.e(TAG, "The payload exceeds the size of the package");
+            return false;
+        }
+
+        // The metadata is at the beginning of the payload, hash both in one pass
+        MessageDigest metadataDigest = metadataHash != null ? FileHasher.newDigest() : null;
+        byte[] payloadHash = FileHasher.sha256(file, offset, fileSize, metadataDigest,
+                metadataSize, progressCallBack);
+        if (metadataDigest != null &&
+                !MessageDigest.isEqual(metadataHash, metadataDigest.digest())) {
+            Log.e(TAG, "Payload metadata hash mismatch");
+            return false;
+        }
+        if (!MessageDigest.isEqual(fileHash, payloadHash)) {
+            Log.e(TAG, "Payload hash mismatch");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param headerKeyValuePairs the lines of payload_properties.txt
+     * @return the size of the payload metadata, or -1 if unknown
+     */
+    static long getMetadataSize(String[] headerKeyValuePairs) {
+        return parseSize(parseProperties(headerKeyValuePairs).get(KEY_METADATA_SIZE));
+    }
+
+    private static Map<String, String> parseProperties(String[] headerKeyValuePairs) {
+        Map<String, String> properties = new HashMap<>();
+        for (String pair : headerKeyValuePairs) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                properties.put(pair.substring(0, separator).trim(),
+                        pair.substring(separator + 1).trim());
+            }
+        }
+        return properties;
+    }
+
+    private static byte[] decodeHash(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            return Base64.getDecoder().decode(value);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid hash " + value);
+            return null;
+        }
+    }
+
+    private static long parseSize(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Invalid size " + value);
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Decides whether update_engine should run in performance mode while an update
+ * is being installed. It's enabled when the user asked for it or when the device
+ * is charging and nobody is using it, and always disabled when the device is
+ * getting hot.
+ */
+class PerformanceModePolicy {
+
+    private static final String TAG = "PerformanceModePolicy";
+
+    interface Callback {
+        void onPerformanceModeChanged(boolean enable);
+    }
+
+    private final Context mContext;
+    private final PowerManager mPowerManager;
+    private final Callback mCallback;
+
+    private boolean mStarted;
+    private boolean mUserPreference;
+    private boolean mCharging;
+    private boolean mInteractive;
+    private boolean mThermalThrottled;
+
+    private boolean mApplied;
+    private boolean mEnabled;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (Intent.ACTION_POWER_CONNECTED.equals(action)) {
+                setCharging(true);
+            } else if (Intent.ACTION_POWER_DISCONNECTED.equals(action)) {
+                setCharging(false);
+            } else if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+                setInteractive(false);
+            } else if (Intent.ACTION_SCREEN_ON.equals(action) ||
+                    Intent.ACTION_USER_PRESENT.equals(action)) {
+                setInteractive(true);
+            }
+        }
+    };
+
+    private final PowerManager.OnThermalStatusChangedListener mThermalListener =
+            status -> setThermalStatus(status);
+
+    PerformanceModePolicy(Context context, Callback callback) {
+        mContext = context.getApplicationContext();
+        mPowerManager = mContext.getSystemService(PowerManager.class);
+        mCallback = callback;
+    }
+
+    synchronized void start(boolean userPreference) {
+        mUserPreference = userPreference;
+        if (mStarted) {
+            evaluate();
+            return;
+        }
+        mStarted = true;
+        mApplied = false;
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        filter.addAction(Intent.ACTION_USER_PRESENT);
+        mContext.registerReceiver(mReceiver, filter);
+        mPowerManager.addThermalStatusListener(mThermalListener);
+
+        Intent battery = mContext.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        mCharging = battery != null &&
+                battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        mInteractive = mPowerManager.isInteractive();
+        mThermalThrottled = isThrottled(mPowerManager.getCurrentThermalStatus());
+        evaluate();
+    }
+
+    synchronized void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mContext.unregisterReceiver(mReceiver);
+        mPowerManager.removeThermalStatusListener(mThermalListener);
+        // Don't leave update_engine in performance mode once the installation is over
+        if (mApplied && mEnabled) {
+            mCallback.onPerformanceModeChanged(false);
+        }
+        mApplied = false;
+        mEnabled = false;
+    }
+
+    synchronized void setUserPreference(boolean enable) {
+        mUserPreference = enable;
+        if (!mStarted) {
+            // Nothing to decide without an installation, do what the user asked
+            mCallback.onPerformanceModeChanged(enable);
+            return;
+        }
+        evaluate();
+    }
+
+    private synchronized void setCharging(boolean charging) {
+        mCharging = charging;
+        evaluate();
+    }
+
+    private synchronized void setInteractive(boolean interactive) {
+        mInteractive = interactive;
+        evaluate();
+    }
+
+    private synchronized void setThermalStatus(int status) {
+        mThermalThrottled = isThrottled(status);
+        evaluate();
+    }
+
+    private static boolean isThrottled(int status) {
+        return status >= PowerManager.THERMAL_STATUS_MODERATE;
+    }
+
+    private void evaluate() {
+        if (!mStarted) {
+            return;
+        }
+        boolean enable = !mThermalThrottled &&
+                (mUserPreference || (mCharging && !mInteractive));
+        if (mApplied && enable == mEnabled) {
+            return;
+        }
+        Log.d(TAG, "Performance mode " + (enable ? "enabled" : "disabled") +
+                " (charging=" + mCharging + ", interactive=" + mInteractive +
+                ", throttled=" + mThermalThrottled + ")");
+        mApplied = true;
+        mEnabled = enable;
+        mCallback.onPerformanceModeChanged(enable);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import org.lineageos.updater.UpdatesDbHelper;
+import org.lineageos.updater.misc.Constants;
+import org.lineageos.updater.model.UpdateStatus;
+
+/**
+ * Resumes the downloads interrupted by a reboot or by the loss of connectivity
+ * as soon as the device is back online, without waiting for the user to open
+ * the app.
+ */
+public class ResumeDownloadsJobService extends JobService {
+
+    private static final String TAG = "ResumeDownloadsJobService";
+
+    private static final int JOB_ID = 3;
+
+    public static void scheduleIfNeeded(Context context) {
+        UpdatesDbHelper dbHelper = new UpdatesDbHelper(context);
+        boolean incomplete = !dbHelper.getUpdates(
+                UpdatesDbHelper.UpdateEntry.COLUMN_NAME_STATUS + " = ?",
+                new String[]{String.valueOf(UpdateStatus.Persistent.INCOMPLETE)}).isEmpty();
+        dbHelper.close();
+        if (incomplete) {
+            schedule(context);
+        }
+    }
+
+    static void schedule(Context context) {
+        // Don't use metered networks behind the back of the user if asked not to
+        boolean warnMetered = PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(Constants.PREF_METERED_NETWORK_WARNING, true);
+        JobInfo jobInfo = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, ResumeDownloadsJobService.class))
+                .setRequiredNetworkType(warnMetered ?
+                        JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                .setPersisted(true)
+                .build();
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        if (jobScheduler.schedule(jobInfo) != JobScheduler.RESULT_SUCCESS) {
+            Log.e(TAG, "Could not schedule the resume of the downloads");
+        }
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        Log.d(TAG, "Resuming interrupted downloads");
+        Intent intent = new Intent(this, UpdaterService.class);
+        intent.setAction(UpdaterService.ACTION_RESUME_DOWNLOADS);
+        UpdaterService.startFromJob(this, intent);
+        return false;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.controller;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.PersistableBundle;
+import android.util.Log;
+
+import org.lineageos.updater.UpdatesDbHelper;
+import org.lineageos.updater.misc.Utils;
+import org.lineageos.updater.model.Update;
+import org.lineageos.updater.model.UpdateStatus;
+
+import java.util.List;
+
+/**
+ * Installs a verified A/B update the next time the device is idle and charging,
+ * so that the installation doesn't slow down the device while it's being used.
+ * The performance mode gets enabled since nobody is using the device.
+ */
+public class ScheduledInstallJobService extends JobService {
+
+    private static final String TAG = "ScheduledInstallJobService";
+
+    private static final int JOB_ID = 2;
+
+    private static final String EXTRA_DOWNLOAD_ID = "download_id";
+
+    public static boolean schedule(Context context, String downloadId) {
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(EXTRA_DOWNLOAD_ID, downloadId);
+        JobInfo jobInfo = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, ScheduledInstallJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .setExtras(extras)
+                .build();
+        JobScheduler jobScheduler = context.getSystemService(JobScheduler.class);
+        if (jobScheduler.schedule(jobInfo) != JobScheduler.RESULT_SUCCESS) {
+            Log.e(TAG, "Could not schedule the installation of " + downloadId);
+            return false;
+        }
+        Log.d(TAG, "Installation of " + downloadId + " scheduled");
+        return true;
+    }
+
+    public static void cancel(Context context) {
+        context.getSystemService(JobScheduler.class).cancel(JOB_ID);
+    }
+
+    /**
+     * @return the ID of the update whose installation is scheduled, or null
+     */
+    public static String getScheduledDownloadId(Context context) {
+        JobInfo jobInfo = context.getSystemService(JobScheduler.class).getPendingJob(JOB_ID);
+        return jobInfo != null ? jobInfo.getExtras().getString(EXTRA_DOWNLOAD_ID) : null;
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        String downloadId = params.getExtras().getString(EXTRA_DOWNLOAD_ID);
+        if (UpdateInstaller.isInstalling() || ABUpdateInstaller.isInstallingUpdate(this)) {
+            Log.d(TAG, "An update is already being installed");
+            return false;
+        }
+
+        // Don't query the database on the main thread
+        new Thread(() -> {
+            if (canInstall(downloadId)) {
+                Log.d(TAG, "Installing " + downloadId);
+                Intent intent = new Intent(this, UpdaterService.class);
+                intent.setAction(UpdaterService.ACTION_INSTALL_UPDATE);
+                intent.putExtra(UpdaterService.EXTRA_DOWNLOAD_ID, downloadId);
+                UpdaterService.startFromJob(this, intent);
+            }
+            jobFinished(params, false);
+        }).start();
+        return true;
+    }
+
+    private boolean canInstall(String downloadId) {
+        // The update might have been deleted in the meantime
+        UpdatesDbHelper dbHelper = new UpdatesDbHelper(this);
+        List<Update> updates = dbHelper.getUpdates(
+                UpdatesDbHelper.UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ?",
+                new String[]{downloadId});
+        dbHelper.close();
+        if (updates.isEmpty()) {
+            Log.e(TAG, downloadId + " no longer exists");
+            return false;
+        }
+        Update update = updates.get(0);
+        if (update.getPersistentStatus() != UpdateStatus.Persistent.VERIFIED ||
+                !update.getFile().exists() || !Utils.canInstall(update)) {
+            Log.e(TAG, downloadId + " can't be installed");
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
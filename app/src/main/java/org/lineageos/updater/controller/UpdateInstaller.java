@@ -17,12 +17,13 @@ package org.lineageos.updater.controller;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.RecoverySystem;
 import android.os.SystemClock;
-import android.os.SystemProperties;
 import android.util.Log;
 
 import androidx.preference.PreferenceManager;
 
+import org.lineageos.updater.misc.BuildProperties;
 import org.lineageos.updater.misc.Constants;
 import org.lineageos.updater.misc.FileUtils;
 import org.lineageos.updater.misc.Utils;
@@ -41,7 +42,7 @@ class UpdateInstaller {
     private static final String TAG = "UpdateInstaller";
 
     private static UpdateInstaller sInstance = null;
-    private static String sInstallingUpdate = null;
+    private static volatile String sInstallingUpdate = null;
 
     private Thread mPrepareUpdateThread;
     private volatile boolean mCanCancel;
@@ -62,12 +63,13 @@ class UpdateInstaller {
         return sInstance;
     }
 
-    static synchronized boolean isInstalling() {
+    static boolean isInstalling() {
         return sInstallingUpdate != null;
     }
 
-    static synchronized boolean isInstalling(String downloadId) {
-        return sInstallingUpdate != null && sInstallingUpdate.equals(downloadId);
+    static boolean isInstalling(String downloadId) {
+        String installingUpdate = sInstallingUpdate;
+        return installingUpdate != null && installingUpdate.equals(downloadId);
     }
 
     void install(String downloadId) {
@@ -78,22 +80,28 @@ class UpdateInstaller {
 
         UpdateInfo update = mUpdaterController.getUpdate(downloadId);
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mContext);
-        long buildTimestamp = SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
+        long buildTimestamp = BuildProperties.get().getBuildDate();
         long lastBuildTimestamp = preferences.getLong(Constants.PREF_INSTALL_OLD_TIMESTAMP,
                 buildTimestamp);
         boolean isReinstalling = buildTimestamp == lastBuildTimestamp;
+        boolean isEncrypted = Utils.isEncrypted(mContext, update.getFile());
+        // uncrypt rewrites the file so that it can be read without mounting
+        // the filesystem. If the package is going to be deleted once installed,
+        // there's no need to preserve it, so spare the copy. The copy can't be
+        // a hardlink or a reflink, uncrypt writes to the blocks of the file.
+        boolean uncryptInPlace = isEncrypted &&
+                preferences.getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false);
         preferences.edit()
                 .putLong(Constants.PREF_INSTALL_OLD_TIMESTAMP, buildTimestamp)
                 .putLong(Constants.PREF_INSTALL_NEW_TIMESTAMP, update.getTimestamp())
                 .putString(Constants.PREF_INSTALL_PACKAGE_PATH, update.getFile().getAbsolutePath())
                 .putBoolean(Constants.PREF_INSTALL_AGAIN, isReinstalling)
                 .putBoolean(Constants.PREF_INSTALL_NOTIFIED, false)
+                .putBoolean(Constants.PREF_INSTALL_UNCRYPTED_IN_PLACE, uncryptInPlace)
                 .apply();
 
-        if (Utils.isEncrypted(mContext, update.getFile())) {
-            // uncrypt rewrites the file so that it can be read without mounting
-            // the filesystem, so create a copy of it.
-            prepareForUncryptAndInstall(update);
+        if (isEncrypted) {
+            prepareForUncryptAndInstall(update, uncryptInPlace);
         } else {
             installPackage(update.getFile(), downloadId);
         }
@@ -101,7 +109,7 @@ class UpdateInstaller {
 
     private void installPackage(File update, String downloadId) {
         try {
-            android.os.RecoverySystem.installPackage(mContext, update);
+            RecoverySystem.installPackage(mContext, update);
         } catch (IOException e) {
             Log.e(TAG, "Could not install update", e);
             mUpdaterController.getActualUpdate(downloadId)
@@ -110,39 +118,50 @@ class UpdateInstaller {
         }
     }
 
-    private synchronized void prepareForUncryptAndInstall(UpdateInfo update) {
+    private synchronized void prepareForUncryptAndInstall(UpdateInfo update, boolean inPlace) {
         String uncryptFilePath = update.getFile().getAbsolutePath() + Constants.UNCRYPT_FILE_EXT;
-        File uncryptFile = new File(uncryptFilePath);
+        File uncryptFile = inPlace ? update.getFile() : new File(uncryptFilePath);
 
         Runnable copyUpdateRunnable = new Runnable() {
             private long mLastUpdate = -1;
 
+            // The copy and the uncrypt step take roughly the same time, each
+            // one gets half of the progress bar
             final FileUtils.ProgressCallBack mProgressCallBack = new FileUtils.ProgressCallBack() {
                 @Override
                 public void update(int progress) {
-                    long now = SystemClock.elapsedRealtime();
-                    if (mLastUpdate < 0 || now - mLastUpdate > 500) {
-                        mUpdaterController.getActualUpdate(update.getDownloadId())
-                                .setInstallProgress(progress);
-                        mUpdaterController.notifyInstallProgress(update.getDownloadId());
-                        mLastUpdate = now;
-                    }
+                    updateProgress(progress / 2);
                 }
             };
 
+            final RecoverySystem.ProgressListener mUncryptProgressListener =
+                    progress -> updateProgress(inPlace ? progress : 50 + progress / 2);
+
+            private void updateProgress(int progress) {
+                long now = SystemClock.elapsedRealtime();
+                if (mLastUpdate < 0 || now - mLastUpdate > 500) {
+                    mUpdaterController.getActualUpdate(update.getDownloadId())
+                            .setInstallProgress(progress);
+                    mUpdaterController.notifyInstallProgress(update.getDownloadId());
+                    mLastUpdate = now;
+                }
+            }
+
             @Override
             public void run() {
                 try {
-                    mCanCancel = true;
-                    FileUtils.copyFile(update.getFile(), uncryptFile, mProgressCallBack);
-                    try {
-                        Set<PosixFilePermission> perms = new HashSet<>();
-                        perms.add(PosixFilePermission.OWNER_READ);
-                        perms.add(PosixFilePermission.OWNER_WRITE);
-                        perms.add(PosixFilePermission.OTHERS_READ);
-                        perms.add(PosixFilePermission.GROUP_READ);
-                        Files.setPosixFilePermissions(uncryptFile.toPath(), perms);
-                    } catch (IOException exception) {}
+                    if (!inPlace) {
+                        mCanCancel = true;
+                        FileUtils.copyFile(update.getFile(), uncryptFile, mProgressCallBack);
+                        try {
+                            Set<PosixFilePermission> perms = new HashSet<>();
+                            perms.add(PosixFilePermission.OWNER_READ);
+                            perms.add(PosixFilePermission.OWNER_WRITE);
+                            perms.add(PosixFilePermission.OTHERS_READ);
+                            perms.add(PosixFilePermission.GROUP_READ);
+                            Files.setPosixFilePermissions(uncryptFile.toPath(), perms);
+                        } catch (IOException exception) {}
+                    }
 
                     mCanCancel = false;
                     if (mPrepareUpdateThread.isInterrupted()) {
@@ -150,15 +169,27 @@ class UpdateInstaller {
                                 .setStatus(UpdateStatus.INSTALLATION_CANCELLED);
                         mUpdaterController.getActualUpdate(update.getDownloadId())
                                 .setInstallProgress(0);
-                        //noinspection ResultOfMethodCallIgnored
-                        uncryptFile.delete();
+                        // Never delete the downloaded package itself
+                        if (!inPlace) {
+                            //noinspection ResultOfMethodCallIgnored
+                            uncryptFile.delete();
+                        }
                     } else {
-                        installPackage(uncryptFile, update.getDownloadId());
+                        // Uncrypt now rather than while rebooting, so that the
+                        // device is unusable for less time
+                        RecoverySystem.processPackage(mContext, uncryptFile,
+                                mUncryptProgressListener);
+                        RecoverySystem.installPackage(mContext, uncryptFile, true);
                     }
                 } catch (IOException e) {
-                    Log.e(TAG, "Could not copy update", e);
+                    Log.e(TAG, "Could not prepare update", e);
+                    // When uncrypted in place, this is the downloaded package,
+                    // which might have already been rewritten and can't be trusted
                     //noinspection ResultOfMethodCallIgnored
                     uncryptFile.delete();
+                    if (inPlace) {
+                        mUpdaterController.forgetDownloadedFile(update.getDownloadId());
+                    }
                     mUpdaterController.getActualUpdate(update.getDownloadId())
                             .setStatus(UpdateStatus.INSTALLATION_FAILED);
                 } finally {
@@ -18,15 +18,21 @@ package org.lineageos.updater.controller;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.preference.PreferenceManager;
 
+import org.json.JSONException;
 import org.lineageos.updater.UpdatesDbHelper;
 import org.lineageos.updater.download.DownloadClient;
+import org.lineageos.updater.misc.BuildProperties;
+import org.lineageos.updater.misc.UpdateListDiff;
+import org.lineageos.updater.misc.UpdateListSnapshot;
 import org.lineageos.updater.misc.Utils;
 import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateInfo;
@@ -35,6 +41,7 @@ import org.lineageos.updater.model.UpdateStatus;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -49,12 +56,18 @@ public class UpdaterController {
     public static final String ACTION_UPDATE_STATUS = "action_update_status_change";
     public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
 
-    private final String TAG = "UpdaterController";
+    private static final String TAG = "UpdaterController";
 
     private static UpdaterController sUpdaterController;
 
     private static final int MAX_REPORT_INTERVAL_MS = 1000;
 
+    // The downloads paused by the user, kept across reboots so that they
+    // don't get resumed automatically
+    private static final String PREF_PAUSED_BY_USER = "paused_by_user_ids";
+    // The downloads started without the user asking for them
+    private static final String PREF_AUTO_DOWNLOADS = "auto_download_ids";
+
     private final Context mContext;
     private final LocalBroadcastManager mBroadcastManager;
     private final UpdatesDbHelper mUpdatesDbHelper;
@@ -204,6 +217,10 @@ public class UpdaterController {
                         removeDownloadClient(entry);
                         update.setStatus(UpdateStatus.PAUSED_ERROR);
                         notifyUpdateChange(downloadId);
+                        if (!Utils.isNetworkAvailable(mContext)) {
+                            // Pick it up again as soon as we are back online
+                            ResumeDownloadsJobService.schedule(mContext);
+                        }
                     }
                 }
                 tryReleaseWakelock();
@@ -255,13 +272,23 @@ public class UpdaterController {
             if (entry != null) {
                 Update update = entry.mUpdate;
                 File file = update.getFile();
-                if (file.exists() && verifyPackage(file)) {
+                // Before throwing the whole file away, try to download again
+                // only the corrupted chunks, if the server tells us which ones
+                if (file.exists() && (verifyPackage(file) ||
+                        (PackageRepairer.repair(update) && verifyPackage(file)))) {
                     //noinspection ResultOfMethodCallIgnored
                     file.setReadable(true, false);
                     update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
                     mUpdatesDbHelper.changeUpdateStatus(update);
-                    update.setStatus(UpdateStatus.VERIFIED);
+                    // Don't take space on behalf of users that didn't ask for the update
+                    boolean automatic = isAutoDownload(downloadId);
+                    update.setStatus(automatic ? UpdateStatus.VERIFIED : reserveSpace(update));
+                    setIdInPreferenceSet(PREF_AUTO_DOWNLOADS, downloadId, false);
                 } else {
+                    if (file.exists()) {
+                        //noinspection ResultOfMethodCallIgnored
+                        file.delete();
+                    }
                     update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
                     mUpdatesDbHelper.removeUpdate(downloadId);
                     update.setProgress(0);
@@ -273,6 +300,22 @@ public class UpdaterController {
         }).start();
     }
 
+    /**
+     * Let update_engine reserve the space needed to apply A/B updates now,
+     * so that users can free some space before starting the installation.
+     * The space is released when the update is deleted, and reserving space
+     * for a newer update replaces the reservation.
+     */
+    private UpdateStatus reserveSpace(Update update) {
+        if (!Utils.isABDevice() || isInstallingUpdate()) {
+            return UpdateStatus.VERIFIED;
+        }
+        long requiredSpace = ABUpdateInstaller.getInstance(mContext, this)
+                .allocateSpace(update.getFile(), update.getDownloadId());
+        update.setRequiredSpace(Math.max(requiredSpace, 0));
+        return requiredSpace > 0 ? UpdateStatus.INSUFFICIENT_SPACE : UpdateStatus.VERIFIED;
+    }
+
     private boolean verifyPackage(File file) {
         try {
             android.os.RecoverySystem.verifyPackage(file, null, null);
@@ -280,10 +323,7 @@ public class UpdaterController {
             return true;
         } catch (Exception e) {
             Log.e(TAG, "Verification failed", e);
-            if (file.exists()) {
-                //noinspection ResultOfMethodCallIgnored
-                file.delete();
-            } else {
+            if (!file.exists()) {
                 // The download was probably stopped. Exit silently
                 Log.e(TAG, "Error while verifying the file", e);
             }
@@ -309,7 +349,7 @@ public class UpdaterController {
         return true;
     }
 
-    public void setUpdatesAvailableOnline(List<String> downloadIds, boolean purgeList) {
+    public void setUpdatesAvailableOnline(Set<String> downloadIds, boolean purgeList) {
         List<String> toRemove = new ArrayList<>();
         for (DownloadEntry entry : mDownloads.values()) {
             boolean online = downloadIds.contains(entry.mUpdate.getDownloadId());
@@ -326,6 +366,59 @@ public class UpdaterController {
         }
     }
 
+    /**
+     * Apply the changes between the list of updates previously given with
+     * setUpdatesAvailableOnline() and a new one, leaving the rest untouched
+     *
+     * @return the IDs of the updates added
+     */
+    public List<String> applyUpdateListDiff(UpdateListDiff diff) {
+        List<String> added = new ArrayList<>();
+        for (UpdateInfo update : diff.getAdded()) {
+            if (addUpdate(update)) {
+                added.add(update.getDownloadId());
+            } else {
+                // We might have it already, it's online now
+                DownloadEntry entry = mDownloads.get(update.getDownloadId());
+                if (entry != null) {
+                    entry.mUpdate.setAvailableOnline(true);
+                }
+            }
+        }
+        for (UpdateInfo update : diff.getChanged()) {
+            DownloadEntry entry = mDownloads.get(update.getDownloadId());
+            if (entry == null) {
+                if (addUpdate(update)) {
+                    added.add(update.getDownloadId());
+                }
+                continue;
+            }
+            addUpdate(update);
+            // Once downloaded, the fields describe the file we have
+            Update updateAdded = entry.mUpdate;
+            if (updateAdded.getPersistentStatus() == UpdateStatus.Persistent.UNKNOWN) {
+                updateAdded.setName(update.getName());
+                updateAdded.setTimestamp(update.getTimestamp());
+                updateAdded.setFileSize(update.getFileSize());
+                updateAdded.setType(update.getType());
+                updateAdded.setVersion(update.getVersion());
+            }
+        }
+        for (String downloadId : diff.getRemoved()) {
+            DownloadEntry entry = mDownloads.get(downloadId);
+            if (entry == null) {
+                continue;
+            }
+            entry.mUpdate.setAvailableOnline(false);
+            if (entry.mUpdate.getPersistentStatus() == UpdateStatus.Persistent.UNKNOWN) {
+                Log.d(TAG, downloadId + " no longer available online, removing");
+                mDownloads.remove(downloadId);
+                notifyUpdateDelete(downloadId);
+            }
+        }
+        return added;
+    }
+
     public boolean addUpdate(UpdateInfo update) {
         return addUpdate(update, true);
     }
@@ -339,6 +432,7 @@ public class UpdaterController {
                 Update updateAdded = entry.mUpdate;
                 updateAdded.setAvailableOnline(availableOnline && updateAdded.getAvailableOnline());
                 updateAdded.setDownloadUrl(updateInfo.getDownloadUrl());
+                updateAdded.setChunkManifestUrl(updateInfo.getChunkManifestUrl());
             }
             return false;
         }
@@ -354,12 +448,21 @@ public class UpdaterController {
         return true;
     }
 
-    @SuppressLint("WakelockTimeout")
     public void startDownload(String downloadId) {
+        startDownload(downloadId, false);
+    }
+
+    /**
+     * @param automatic whether the download wasn't requested by the user
+     */
+    @SuppressLint("WakelockTimeout")
+    private void startDownload(String downloadId, boolean automatic) {
         Log.d(TAG, "Starting " + downloadId);
         if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
             return;
         }
+        setIdInPreferenceSet(PREF_PAUSED_BY_USER, downloadId, false);
+        setIdInPreferenceSet(PREF_AUTO_DOWNLOADS, downloadId, automatic);
         DownloadEntry entry = mDownloads.get(downloadId);
         if (entry == null) {
             Log.e(TAG, "Could not get download entry");
@@ -394,12 +497,21 @@ public class UpdaterController {
         mWakeLock.acquire();
     }
 
-    @SuppressLint("WakelockTimeout")
     public void resumeDownload(String downloadId) {
+        resumeDownload(downloadId, false);
+    }
+
+    /**
+     * @param automatic whether the download wasn't requested by the user
+     */
+    @SuppressLint("WakelockTimeout")
+    private void resumeDownload(String downloadId, boolean automatic) {
         Log.d(TAG, "Resuming " + downloadId);
         if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
             return;
         }
+        setIdInPreferenceSet(PREF_PAUSED_BY_USER, downloadId, false);
+        setIdInPreferenceSet(PREF_AUTO_DOWNLOADS, downloadId, automatic);
         DownloadEntry entry = mDownloads.get(downloadId);
         if (entry == null) {
             Log.e(TAG, "Could not get download entry");
@@ -442,6 +554,130 @@ public class UpdaterController {
         }
     }
 
+    /**
+     * Resume the downloads that were interrupted by a reboot or by a network
+     * error. The ones paused by the user are left alone.
+     *
+     * @param cachedUpdates the cached list of updates, see readCachedUpdateList()
+     * @return the number of downloads resumed
+     */
+    public int resumeInterruptedDownloads(List<UpdateInfo> cachedUpdates) {
+        List<Update> interrupted = new ArrayList<>();
+        boolean missingUrls = false;
+        for (DownloadEntry entry : mDownloads.values()) {
+            Update update = entry.mUpdate;
+            String downloadId = update.getDownloadId();
+            if (update.getPersistentStatus() != UpdateStatus.Persistent.INCOMPLETE ||
+                    isDownloading(downloadId) || isVerifyingUpdate(downloadId) ||
+                    isPausedByUser(downloadId)) {
+                continue;
+            }
+            if (update.getStatus() != UpdateStatus.PAUSED &&
+                    update.getStatus() != UpdateStatus.PAUSED_ERROR) {
+                continue;
+            }
+            interrupted.add(update);
+            missingUrls |= update.getDownloadUrl() == null;
+        }
+        if (interrupted.isEmpty()) {
+            return 0;
+        }
+
+        // The database doesn't store where the updates come from
+        if (missingUrls) {
+            loadUpdateList(cachedUpdates);
+        }
+
+        int resumed = 0;
+        for (Update update : interrupted) {
+            File file = update.getFile();
+            if (update.getDownloadUrl() == null || !update.getAvailableOnline()) {
+                Log.d(TAG, update.getDownloadId() + " is no longer available, not resuming");
+            } else if (file == null || !file.exists() ||
+                    (update.getFileSize() > 0 && file.length() > update.getFileSize())) {
+                Log.e(TAG, "The partial download of " + update.getDownloadId() +
+                        " is not valid, not resuming");
+            } else {
+                // Whoever started the download, it's still their download
+                resumeDownload(update.getDownloadId(), isAutoDownload(update.getDownloadId()));
+                resumed++;
+            }
+        }
+        return resumed;
+    }
+
+    /**
+     * Start downloading the newest update that can be installed, unless it's
+     * already downloaded. Once downloaded, it gets verified as usual, but the
+     * space needed to install it isn't reserved in advance.
+     *
+     * @param cachedUpdates the cached list of updates, see readCachedUpdateList()
+     * @return the ID of the update being downloaded, or null
+     */
+    public String downloadLatestUpdate(List<UpdateInfo> cachedUpdates) {
+        if (hasActiveDownloads() || isVerifyingUpdate() || isInstallingUpdate()) {
+            Log.d(TAG, "Busy, not downloading the latest update");
+            return null;
+        }
+        loadUpdateList(cachedUpdates);
+
+        BuildProperties.Filter filter = BuildProperties.get().newFilter();
+        Update latest = null;
+        for (DownloadEntry entry : mDownloads.values()) {
+            Update update = entry.mUpdate;
+            if (filter.canInstall(update) && (latest == null ||
+                    update.getTimestamp() > latest.getTimestamp())) {
+                latest = update;
+            }
+        }
+        if (latest == null || !latest.getAvailableOnline() ||
+                isPausedByUser(latest.getDownloadId())) {
+            return null;
+        }
+        switch (latest.getPersistentStatus()) {
+            case UpdateStatus.Persistent.UNKNOWN:
+                Log.d(TAG, "Downloading " + latest.getDownloadId());
+                startDownload(latest.getDownloadId(), true);
+                return latest.getDownloadId();
+            case UpdateStatus.Persistent.INCOMPLETE:
+                resumeDownload(latest.getDownloadId(), isAutoDownload(latest.getDownloadId()));
+                return latest.getDownloadId();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Read the cached list of updates. Parsing it can take a while, so it
+     * shouldn't be done on the main thread.
+     *
+     * @return the updates of the list, or null if there's no list or it can't be read
+     */
+    public static List<UpdateInfo> readCachedUpdateList(Context context) {
+        File jsonFile = Utils.getCachedUpdateList(context);
+        if (!jsonFile.exists()) {
+            return null;
+        }
+        try {
+            return UpdateListSnapshot.get(jsonFile);
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Could not read the cached list of updates", e);
+            return null;
+        }
+    }
+
+    private void loadUpdateList(List<UpdateInfo> updates) {
+        if (updates == null) {
+            return;
+        }
+        Set<String> updatesOnline = new HashSet<>();
+        for (UpdateInfo update : updates) {
+            addUpdate(update);
+            updatesOnline.add(update.getDownloadId());
+        }
+        setUpdatesAvailableOnline(updatesOnline, false);
+    }
+
     public void pauseDownload(String downloadId) {
         Log.d(TAG, "Pausing " + downloadId);
         if (!isDownloading(downloadId)) {
@@ -452,6 +688,7 @@ public class UpdaterController {
         if (entry != null) {
             entry.mDownloadClient.cancel();
             removeDownloadClient(entry);
+            setIdInPreferenceSet(PREF_PAUSED_BY_USER, downloadId, true);
             entry.mUpdate.setStatus(UpdateStatus.PAUSED);
             entry.mUpdate.setEta(0);
             entry.mUpdate.setSpeed(0);
@@ -459,6 +696,24 @@ public class UpdaterController {
         }
     }
 
+    /**
+     * Called when the file of a downloaded update was deleted behind our back,
+     * the update has to be downloaded again
+     */
+    void forgetDownloadedFile(String downloadId) {
+        DownloadEntry entry = mDownloads.get(downloadId);
+        if (entry == null) {
+            return;
+        }
+        Update update = entry.mUpdate;
+        update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
+        update.setProgress(0);
+        update.setInstallProgress(0);
+        mUpdatesDbHelper.removeUpdate(downloadId);
+        releaseSpace(downloadId);
+        notifyUpdateChange(downloadId);
+    }
+
     private void deleteUpdateAsync(final Update update) {
         new Thread(() -> {
             File file = update.getFile();
@@ -466,7 +721,42 @@ public class UpdaterController {
                 Log.e(TAG, "Could not delete " + file.getAbsolutePath());
             }
             mUpdatesDbHelper.removeUpdate(update.getDownloadId());
+            releaseSpace(update.getDownloadId());
         }).start();
+        setIdInPreferenceSet(PREF_PAUSED_BY_USER, update.getDownloadId(), false);
+        setIdInPreferenceSet(PREF_AUTO_DOWNLOADS, update.getDownloadId(), false);
+    }
+
+    private boolean isPausedByUser(String downloadId) {
+        return isIdInPreferenceSet(PREF_PAUSED_BY_USER, downloadId);
+    }
+
+    private boolean isAutoDownload(String downloadId) {
+        return isIdInPreferenceSet(PREF_AUTO_DOWNLOADS, downloadId);
+    }
+
+    private boolean isIdInPreferenceSet(String key, String downloadId) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        return preferences.getStringSet(key, Collections.emptySet()).contains(downloadId);
+    }
+
+    private synchronized void setIdInPreferenceSet(String key, String downloadId,
+            boolean present) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        // The set returned by the preferences must not be modified
+        Set<String> ids = new HashSet<>(preferences.getStringSet(key, Collections.emptySet()));
+        if (present ? ids.add(downloadId) : ids.remove(downloadId)) {
+            preferences.edit().putStringSet(key, ids).apply();
+        }
+    }
+
+    /**
+     * Release the space reserved by reserveSpace() for an update that is gone
+     */
+    private void releaseSpace(String downloadId) {
+        if (Utils.isABDevice()) {
+            ABUpdateInstaller.getInstance(mContext, this).releaseSpace(downloadId);
+        }
     }
 
     public void deleteUpdate(String downloadId) {
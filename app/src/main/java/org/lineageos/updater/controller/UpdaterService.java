@@ -15,6 +15,7 @@
  */
 package org.lineageos.updater.controller;
 
+import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -27,7 +28,9 @@ import android.content.SharedPreferences;
 import android.content.pm.ServiceInfo;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.text.format.Formatter;
 import android.util.Log;
 
@@ -50,6 +53,7 @@ import java.io.File;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.NumberFormat;
+import java.util.List;
 
 public class UpdaterService extends Service {
 
@@ -59,10 +63,16 @@ public class UpdaterService extends Service {
     public static final String EXTRA_DOWNLOAD_ID = "extra_download_id";
     public static final String EXTRA_DOWNLOAD_CONTROL = "extra_download_control";
     public static final String ACTION_INSTALL_UPDATE = "action_install_update";
+    public static final String ACTION_INSTALL_STREAMING = "action_install_streaming";
     public static final String ACTION_INSTALL_STOP = "action_install_stop";
 
     public static final String ACTION_INSTALL_SUSPEND = "action_install_suspend";
     public static final String ACTION_INSTALL_RESUME = "action_install_resume";
+    public static final String ACTION_RESUME_DOWNLOADS = "action_resume_downloads";
+    public static final String ACTION_DOWNLOAD_LATEST = "action_download_latest";
+
+    // Set by startFromJob()
+    private static final String EXTRA_FROM_JOB = "extra_from_job";
 
     private static final String ONGOING_NOTIFICATION_CHANNEL =
             "ongoing_notification_channel";
@@ -71,6 +81,7 @@ public class UpdaterService extends Service {
     public static final int DOWNLOAD_PAUSE = 1;
 
     private static final int NOTIFICATION_ID = 10;
+    private static final int PREPARING_NOTIFICATION_ID = 11;
 
     private final IBinder mBinder = new LocalBinder();
     private boolean mHasClients;
@@ -82,6 +93,14 @@ public class UpdaterService extends Service {
 
     private UpdaterController mUpdaterController;
 
+    // The actions started from jobs that weren't handed off yet
+    private int mPreparing;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // The installer state can change from the threads of update_engine
+    private final InstallerState.Listener mInstallerStateListener =
+            () -> mHandler.post(this::tryStopSelf);
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -144,11 +163,14 @@ public class UpdaterService extends Service {
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_REMOVED);
         LocalBroadcastManager.getInstance(this).registerReceiver(mBroadcastReceiver, intentFilter);
+        InstallerState.getInstance(this).addListener(mInstallerStateListener);
 
     }
 
     @Override
     public void onDestroy() {
+        InstallerState.getInstance(this).removeListener(mInstallerStateListener);
+        mHandler.removeCallbacksAndMessages(null);
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
         super.onDestroy();
     }
@@ -172,10 +194,25 @@ public class UpdaterService extends Service {
         return false;
     }
 
+    /**
+     * Start the service from a job. Apps in the background can only start
+     * foreground services, so the service gets in the foreground right away
+     * and stays there until the action is handed off.
+     */
+    static void startFromJob(Context context, Intent intent) {
+        intent.putExtra(EXTRA_FROM_JOB, true);
+        context.startForegroundService(intent);
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "Starting service");
 
+        boolean fromJob = intent != null && intent.getBooleanExtra(EXTRA_FROM_JOB, false);
+        if (fromJob) {
+            startPreparing();
+        }
+
         if (intent == null || intent.getAction() == null) {
             if (ABUpdateInstaller.isInstallingUpdate(this)) {
                 // The service is being restarted.
@@ -193,12 +230,42 @@ public class UpdaterService extends Service {
             } else {
                 Log.e(TAG, "Unknown download action");
             }
+        } else if (ACTION_RESUME_DOWNLOADS.equals(intent.getAction())) {
+            // Don't parse the list of updates on the main thread
+            new Thread(() -> {
+                List<UpdateInfo> updates = UpdaterController.readCachedUpdateList(this);
+                mHandler.post(() -> {
+                    if (mUpdaterController.resumeInterruptedDownloads(updates) == 0) {
+                        tryStopSelf();
+                    }
+                    if (fromJob) {
+                        stopPreparing();
+                    }
+                });
+            }).start();
+        } else if (ACTION_DOWNLOAD_LATEST.equals(intent.getAction())) {
+            // Don't parse the list of updates on the main thread
+            new Thread(() -> {
+                List<UpdateInfo> updates = UpdaterController.readCachedUpdateList(this);
+                mHandler.post(() -> {
+                    if (mUpdaterController.downloadLatestUpdate(updates) == null) {
+                        tryStopSelf();
+                    }
+                    if (fromJob) {
+                        stopPreparing();
+                    }
+                });
+            }).start();
         } else if (ACTION_INSTALL_UPDATE.equals(intent.getAction())) {
             String downloadId = intent.getStringExtra(EXTRA_DOWNLOAD_ID);
             UpdateInfo update = mUpdaterController.getUpdate(downloadId);
             if (update.getPersistentStatus() != UpdateStatus.Persistent.VERIFIED) {
                 throw new IllegalArgumentException(update.getDownloadId() + " is not verified");
             }
+            if (!fromJob) {
+                // Whatever was scheduled, the user wants this update now
+                ScheduledInstallJobService.cancel(this);
+            }
             try {
                 if (Utils.isABUpdate(update.getFile())) {
                     ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
@@ -215,6 +282,19 @@ public class UpdaterService extends Service {
                         .setStatus(UpdateStatus.INSTALLATION_FAILED);
                 mUpdaterController.notifyUpdateChange(downloadId);
             }
+            if (fromJob) {
+                stopPreparing();
+            }
+        } else if (ACTION_INSTALL_STREAMING.equals(intent.getAction())) {
+            String downloadId = intent.getStringExtra(EXTRA_DOWNLOAD_ID);
+            UpdateInfo update = mUpdaterController.getUpdate(downloadId);
+            if (!Utils.isABDevice() || !update.getAvailableOnline()) {
+                throw new IllegalArgumentException(update.getDownloadId() +
+                        " can't be streamed");
+            }
+            ABUpdateInstaller installer = ABUpdateInstaller.getInstance(this,
+                    mUpdaterController);
+            installer.installStreaming(downloadId);
         } else if (ACTION_INSTALL_STOP.equals(intent.getAction())) {
             if (UpdateInstaller.isInstalling()) {
                 UpdateInstaller installer = UpdateInstaller.getInstance(this,
@@ -248,6 +328,51 @@ public class UpdaterService extends Service {
         return mUpdaterController;
     }
 
+    /**
+     * startForegroundService() requires startForeground() to be called soon,
+     * even if there's nothing to show yet
+     */
+    private void startPreparing() {
+        mPreparing++;
+        if (mUpdaterController.hasActiveDownloads() || mUpdaterController.isInstallingUpdate()) {
+            // Keep showing what's going on
+            startForeground(NOTIFICATION_ID, mNotificationBuilder.build(),
+                    ServiceInfo.FOREGROUND_SERVICE_TYPE_SPECIAL_USE);
+            return;
+        }
+        String text = getString(R.string.preparing_notification);
+        Notification notification = new NotificationCompat.Builder(this,
+                ONGOING_NOTIFICATION_CHANNEL)
+                .setSmallIcon(R.drawable.ic_system_update)
+                .setContentTitle(text)
+                .setProgress(0, 0, true)
+                .setOngoing(true)
+                .build();
+        startForeground(PREPARING_NOTIFICATION_ID, notification,
+                ServiceInfo.FOREGROUND_SERVICE_TYPE_SPECIAL_USE);
+    }
+
+    /**
+     * Called once an action started from a job was handed off to the
+     * controller or the installers
+     */
+    private void stopPreparing() {
+        // Let the status changes caused by the action be handled first
+        mHandler.post(() -> {
+            if (--mPreparing > 0) {
+                return;
+            }
+            if (mUpdaterController.hasActiveDownloads() ||
+                    mUpdaterController.isInstallingUpdate()) {
+                // The notification of the download or installation took over
+                mNotificationManager.cancel(PREPARING_NOTIFICATION_ID);
+            } else {
+                stopForeground(STOP_FOREGROUND_REMOVE);
+                tryStopSelf();
+            }
+        });
+    }
+
     private void tryStopSelf() {
         if (!mHasClients && !mUpdaterController.hasActiveDownloads() &&
                 !mUpdaterController.isInstallingUpdate()) {
@@ -360,6 +485,21 @@ public class UpdaterService extends Service {
                 tryStopSelf();
                 break;
             }
+            case INSUFFICIENT_SPACE: {
+                stopForeground(STOP_FOREGROUND_DETACH);
+                mNotificationBuilder.setStyle(null);
+                mNotificationBuilder.setSmallIcon(android.R.drawable.stat_sys_warning);
+                mNotificationBuilder.setProgress(0, 0, false);
+                String text = getString(R.string.insufficient_space_notification,
+                        Formatter.formatShortFileSize(this, update.getRequiredSpace()));
+                mNotificationBuilder.setContentText(text);
+                mNotificationBuilder.setTicker(text);
+                mNotificationBuilder.setOngoing(false);
+                mNotificationBuilder.setAutoCancel(true);
+                mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
+                tryStopSelf();
+                break;
+            }
             case VERIFICATION_FAILED: {
                 stopForeground(STOP_FOREGROUND_DETACH);
                 mNotificationBuilder.setStyle(null);
@@ -489,10 +629,16 @@ public class UpdaterService extends Service {
         String percent = NumberFormat.getPercentInstance().format(progress / 100.f);
         mNotificationStyle.setSummaryText(percent);
         boolean notAB = UpdateInstaller.isInstalling();
-        mNotificationStyle.bigText(notAB ? getString(R.string.dialog_prepare_zip_message) :
+        String text = notAB ? getString(R.string.dialog_prepare_zip_message) :
                 update.getFinalizing() ?
                         getString(R.string.finalizing_package) :
-                        getString(R.string.preparing_ota_first_boot));
+                        getString(R.string.preparing_ota_first_boot);
+        long eta = update.getInstallEta();
+        if (!notAB && eta > 0) {
+            CharSequence etaString = StringGenerator.formatETA(this, eta * 1000);
+            text = getString(R.string.list_installing_progress_eta, text, etaString);
+        }
+        mNotificationStyle.bigText(text);
         mNotificationManager.notify(NOTIFICATION_ID, mNotificationBuilder.build());
     }
 
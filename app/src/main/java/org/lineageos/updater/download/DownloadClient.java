@@ -17,6 +17,8 @@ package org.lineageos.updater.download;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 public interface DownloadClient {
 
@@ -26,6 +28,15 @@ public interface DownloadClient {
         void onSuccess();
 
         void onFailure(boolean cancelled);
+
+        /**
+         * Called instead of onSuccess() when the server replied that the
+         * resource didn't change since the version described by the
+         * conditional request headers. Nothing is written to the destination.
+         */
+        default void onNotModified() {
+            onFailure(false);
+        }
     }
 
     interface ProgressListener {
@@ -60,6 +71,8 @@ public interface DownloadClient {
         private DownloadClient.DownloadCallback mCallback;
         private DownloadClient.ProgressListener mProgressListener;
         private boolean mUseDuplicateLinks;
+        private int mTimeout;
+        private final Map<String, String> mRequestHeaders = new HashMap<>();
 
         public DownloadClient build() throws IOException {
             if (mUrl == null) {
@@ -70,7 +83,7 @@ public interface DownloadClient {
                 throw new IllegalStateException("No download callback defined");
             }
             return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
-                    mUseDuplicateLinks);
+                    mUseDuplicateLinks, mRequestHeaders, mTimeout);
         }
 
         public Builder setUrl(String url) {
@@ -97,5 +110,33 @@ public interface DownloadClient {
             mUseDuplicateLinks = useDuplicateLinks;
             return this;
         }
+
+        public Builder addRequestHeader(String name, String value) {
+            mRequestHeaders.put(name, value);
+            return this;
+        }
+
+        /**
+         * @param timeout the timeout in milliseconds for connecting and for
+         *                each read, 0 to use the default one
+         */
+        public Builder setTimeout(int timeout) {
+            mTimeout = timeout;
+            return this;
+        }
+
+        /**
+         * Ask the server to compress the response with gzip. The response is
+         * saved as received, so the destination may or may not be compressed.
+         * Don't use this for files that are read or resumed as raw bytes.
+         */
+        public Builder setAcceptGzip(boolean acceptGzip) {
+            if (acceptGzip) {
+                mRequestHeaders.put("Accept-Encoding", "gzip");
+            } else {
+                mRequestHeaders.remove("Accept-Encoding");
+            }
+            return this;
+        }
     }
 }
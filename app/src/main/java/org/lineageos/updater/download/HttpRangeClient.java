@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Blocking helpers to fetch small files or parts of remote files. Unlike
+ * {@link DownloadClient}, these run on the calling thread.
+ */
+public final class HttpRangeClient {
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final int MAX_REDIRECTS = 5;
+
+    private HttpRangeClient() {
+    }
+
+    /**
+     * Download a whole, small, file in memory
+     *
+     * @param url the URL of the file
+     * @param maxSize the maximum size accepted
+     * @return the content of the file
+     * @throws IOException if the file couldn't be downloaded or is too big
+     */
+    public static byte[] get(String url, int maxSize) throws IOException {
+        HttpURLConnection connection = open(url);
+        try {
+            int responseCode = connection.getResponseCode();
+            if (responseCode / 100 != 2) {
+                throw new IOException("Server replied with " + responseCode);
+            }
+            long contentLength = connection.getContentLengthLong();
+            if (contentLength > maxSize) {
+                throw new IOException("Response too big: " + contentLength);
+            }
+            try (InputStream inputStream = connection.getInputStream()) {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                byte[] b = new byte[8192];
+                int count;
+                while ((count = inputStream.read(b)) > 0) {
+                    if (outputStream.size() + count > maxSize) {
+                        throw new IOException("Response too big");
+                    }
+                    outputStream.write(b, 0, count);
+                }
+                return outputStream.toByteArray();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Download part of a remote file in memory
+     *
+     * @param url the URL of the file
+     * @param offset the offset of the first byte
+     * @param length the number of bytes
+     * @return exactly length bytes
+     * @throws IOException if the server can't serve the given range
+     */
+    public static byte[] getRange(String url, long offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        HttpURLConnection connection = openRange(url, offset, length);
+        try (InputStream inputStream = connection.getInputStream()) {
+            int read = 0;
+            int count;
+            while (read < length && (count = inputStream.read(bytes, read, length - read)) > 0) {
+                read += count;
+            }
+            if (read != length) {
+                throw new IOException("Short read: " + read + " of " + length);
+            }
+        } finally {
+            connection.disconnect();
+        }
+        return bytes;
+    }
+
+    /**
+     * Download part of a remote file into the same position of a local file
+     *
+     * @param url the URL of the file
+     * @param offset the offset of the first byte
+     * @param length the number of bytes
+     * @param destination the channel of the local file
+     * @throws IOException if the server can't serve the given range
+     */
+    public static void copyRange(String url, long offset, long length, FileChannel destination)
+            throws IOException {
+        HttpURLConnection connection = openRange(url, offset, length);
+        try (InputStream inputStream = connection.getInputStream()) {
+            long position = offset;
+            byte[] b = new byte[8192];
+            int count;
+            while (position < offset + length && (count = inputStream.read(b, 0,
+                    (int) Math.min(b.length, offset + length - position))) > 0) {
+                ByteBuffer buffer = ByteBuffer.wrap(b, 0, count);
+                while (buffer.hasRemaining()) {
+                    position += destination.write(buffer, position);
+                }
+            }
+            if (position != offset + length) {
+                throw new IOException("Short read: " + (position - offset) + " of " + length);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Follow the redirects of the given URL, so that all the following requests
+     * end up on the same mirror
+     *
+     * @param url the URL to resolve
+     * @return the URL actually serving the file
+     * @throws IOException if the URL couldn't be resolved
+     */
+    public static String resolveUrl(String url) throws IOException {
+        for (int i = 0; i < MAX_REDIRECTS; i++) {
+            HttpURLConnection connection = open(url);
+            try {
+                // Redirects from HTTP to HTTPS aren't followed automatically
+                connection.setInstanceFollowRedirects(false);
+                connection.setRequestMethod("HEAD");
+                int responseCode = connection.getResponseCode();
+                if (responseCode / 100 == 2) {
+                    return url;
+                }
+                String location = connection.getHeaderField("Location");
+                if (responseCode / 100 != 3 || location == null) {
+                    throw new IOException("Server replied with " + responseCode);
+                }
+                url = new URL(new URL(url), location).toString();
+            } finally {
+                connection.disconnect();
+            }
+        }
+        throw new IOException("Too many redirects");
+    }
+
+    private static HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        return connection;
+    }
+
+    private static HttpURLConnection openRange(String url, long offset, long length)
+            throws IOException {
+        HttpURLConnection connection = open(url);
+        connection.setRequestProperty("Range",
+                "bytes=" + offset + "-" + (offset + length - 1));
+        int responseCode = connection.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+            // A 200 would mean the server is about to send the whole file
+            connection.disconnect();
+            throw new IOException("The server can't serve ranges, replied with " +
+                    responseCode);
+        }
+        return connection;
+    }
+}
@@ -26,6 +26,7 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
@@ -42,6 +43,8 @@ public class HttpURLConnectionClient implements DownloadClient {
     private final DownloadClient.ProgressListener mProgressListener;
     private final DownloadClient.DownloadCallback mCallback;
     private final boolean mUseDuplicateLinks;
+    private final Map<String, String> mRequestHeaders;
+    private final int mTimeout;
 
     private DownloadThread mDownloadThread;
 
@@ -56,12 +59,27 @@ public class HttpURLConnectionClient implements DownloadClient {
     HttpURLConnectionClient(String url, File destination,
             DownloadClient.ProgressListener progressListener,
             DownloadClient.DownloadCallback callback,
-            boolean useDuplicateLinks) throws IOException {
+            boolean useDuplicateLinks,
+            Map<String, String> requestHeaders,
+            int timeout) throws IOException {
         mClient = (HttpURLConnection) new URL(url).openConnection();
         mDestination = destination;
         mProgressListener = progressListener;
         mCallback = callback;
         mUseDuplicateLinks = useDuplicateLinks;
+        mRequestHeaders = new HashMap<>(requestHeaders);
+        mTimeout = timeout;
+        setRequestProperties();
+    }
+
+    private void setRequestProperties() {
+        for (Map.Entry<String, String> header : mRequestHeaders.entrySet()) {
+            mClient.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (mTimeout > 0) {
+            mClient.setConnectTimeout(mTimeout);
+            mClient.setReadTimeout(mTimeout);
+        }
     }
 
     @Override
@@ -124,6 +142,10 @@ public class HttpURLConnectionClient implements DownloadClient {
         return statusCode == 206;
     }
 
+    private static boolean isNotModifiedCode(int statusCode) {
+        return statusCode == 304;
+    }
+
     private class DownloadThread extends Thread {
 
         private long mTotalBytes = 0;
@@ -178,6 +200,7 @@ public class HttpURLConnectionClient implements DownloadClient {
             String range = mClient.getRequestProperty("Range");
             mClient.disconnect();
             mClient = (HttpURLConnection) newUrl.openConnection();
+            setRequestProperties();
             if (range != null) {
                 mClient.setRequestProperty("Range", range);
             }
@@ -261,13 +284,20 @@ public class HttpURLConnectionClient implements DownloadClient {
                 mClient.connect();
                 int responseCode = mClient.getResponseCode();
 
-                if (mUseDuplicateLinks && isRedirectCode(responseCode)) {
+                if (mUseDuplicateLinks && isRedirectCode(responseCode) &&
+                        !isNotModifiedCode(responseCode)) {
                     handleDuplicateLinks();
                     responseCode = mClient.getResponseCode();
                 }
 
                 mCallback.onResponse(new Headers());
 
+                if (isNotModifiedCode(responseCode)) {
+                    Log.d(TAG, "The server replied that nothing changed");
+                    mCallback.onNotModified();
+                    return;
+                }
+
                 if (mResume && isPartialContentCode(responseCode)) {
                     justResumed = true;
                     mTotalBytesRead = mDestination.length();
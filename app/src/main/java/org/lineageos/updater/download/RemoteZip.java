@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.download;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Reads the content of a zip file served over HTTP without downloading it.
+ * Only the end of central directory record, the central directory and the
+ * requested entries are fetched, using range requests.
+ */
+public final class RemoteZip {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+
+    // OTA packages have a handful of entries, don't go crazy on broken files
+    private static final int MAX_CENTRAL_DIRECTORY_SIZE = 4 * 1024 * 1024;
+
+    private static final int MAX_CACHED_INDEXES = 4;
+
+    // Indexes of the most recently used packages, keyed by download ID. They're
+    // dropped once an installation is over, since the mirror URL can expire.
+    private static final Map<String, RemoteZip> sCache =
+            new LinkedHashMap<String, RemoteZip>(MAX_CACHED_INDEXES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, RemoteZip> eldest) {
+                    return size() > MAX_CACHED_INDEXES;
+                }
+            };
+
+    private final String mUrl;
+    private final long mSize;
+    private final Map<String, Entry> mEntries;
+    private String mSourceUrl;
+
+    public static final class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+        private volatile long mDataOffset = -1;
+
+        private Entry(String name, int method, long compressedSize, long size,
+                long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public long getLocalHeaderOffset() {
+            return mLocalHeaderOffset;
+        }
+    }
+
+    private RemoteZip(String url, long size, Map<String, Entry> entries) {
+        mUrl = url;
+        mSize = size;
+        mEntries = entries;
+    }
+
+    /**
+     * Get the index of the package of the given update, reading it only if it
+     * isn't cached already or if the URL or size of the update changed
+     *
+     * @param downloadId the ID of the update
+     * @param url the URL of the update, it's resolved to the final mirror
+     * @param size the size of the update
+     * @return the remote zip
+     * @throws IOException if the central directory couldn't be read
+     */
+    public static RemoteZip get(String downloadId, String url, long size) throws IOException {
+        synchronized (sCache) {
+            RemoteZip zip = sCache.get(downloadId);
+            if (zip != null && url.equals(zip.mSourceUrl) && size == zip.mSize) {
+                return zip;
+            }
+        }
+        RemoteZip zip = open(HttpRangeClient.resolveUrl(url), size);
+        zip.mSourceUrl = url;
+        synchronized (sCache) {
+            sCache.put(downloadId, zip);
+        }
+        return zip;
+    }
+
+    public static void invalidate(String downloadId) {
+        synchronized (sCache) {
+            sCache.remove(downloadId);
+        }
+    }
+
+    /**
+     * Read the central directory of a remote zip file
+     *
+     * @param url the URL of the file, it should already point to the final mirror
+     * @param size the size of the file
+     * @return the remote zip
+     * @throws IOException if the central directory couldn't be read
+     */
+    public static RemoteZip open(String url, long size) throws IOException {
+        if (size < EOCD_SIZE) {
+            throw new IOException("Invalid size " + size);
+        }
+        // The end of central directory record is followed only by the comment,
+        // whose size isn't known in advance, so get the largest tail possible
+        int tailSize = (int) Math.min(size, EOCD_SIZE + MAX_COMMENT_SIZE);
+        long tailOffset = size - tailSize;
+        ByteBuffer tail = wrap(HttpRangeClient.getRange(url, tailOffset, tailSize));
+
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("Not a zip file");
+        }
+
+        long entryCount = tail.getShort(eocd + 10) & 0xffff;
+        long cdSize = tail.getInt(eocd + 12) & ZIP64_MAGIC;
+        long cdOffset = tail.getInt(eocd + 16) & ZIP64_MAGIC;
+        if (entryCount == 0xffff || cdSize == ZIP64_MAGIC || cdOffset == ZIP64_MAGIC) {
+            int locator = eocd - ZIP64_EOCD_LOCATOR_SIZE;
+            if (locator < 0 || tail.getInt(locator) != ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                throw new IOException("Missing zip64 end of central directory locator");
+            }
+            long recordOffset = tail.getLong(locator + 8);
+            ByteBuffer record = wrap(HttpRangeClient.getRange(url, recordOffset,
+                    ZIP64_EOCD_SIZE));
+            if (record.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new IOException("Invalid zip64 end of central directory record");
+            }
+            cdSize = record.getLong(40);
+            cdOffset = record.getLong(48);
+        }
+        if (cdSize > MAX_CENTRAL_DIRECTORY_SIZE || cdOffset < 0 || cdOffset + cdSize > size) {
+            throw new IOException("Invalid central directory " + cdOffset + "+" + cdSize);
+        }
+
+        ByteBuffer cd;
+        if (cdOffset >= tailOffset) {
+            // Small archives, we already have everything
+            cd = wrap(tail.array(), (int) (cdOffset - tailOffset), (int) cdSize);
+        } else {
+            cd = wrap(HttpRangeClient.getRange(url, cdOffset, (int) cdSize));
+        }
+        return new RemoteZip(url, size, parseCentralDirectory(cd));
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public Entry getEntry(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * Get the offset of the data of the given entry. The local header can have
+     * a different extra field than the central directory, so it is fetched too.
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        if (entry.mDataOffset >= 0) {
+            return entry.mDataOffset;
+        }
+        ByteBuffer header = wrap(HttpRangeClient.getRange(mUrl, entry.getLocalHeaderOffset(),
+                LOCAL_HEADER_SIZE));
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local header for " + entry.getName());
+        }
+        int nameLength = header.getShort(26) & 0xffff;
+        int extraLength = header.getShort(28) & 0xffff;
+        entry.mDataOffset = entry.getLocalHeaderOffset() + LOCAL_HEADER_SIZE + nameLength +
+                extraLength;
+        return entry.mDataOffset;
+    }
+
+    /**
+     * Download and, if needed, inflate the given entry
+     *
+     * @param entry the entry to read
+     * @param maxSize the maximum size accepted
+     * @return the uncompressed content of the entry
+     * @throws IOException if the entry couldn't be read or is too big
+     */
+    public byte[] read(Entry entry, int maxSize) throws IOException {
+        if (entry.getSize() > maxSize || entry.getCompressedSize() > maxSize) {
+            throw new IOException(entry.getName() + " is too big");
+        }
+        byte[] data = HttpRangeClient.getRange(mUrl, getDataOffset(entry),
+                (int) entry.getCompressedSize());
+        if (entry.getMethod() == ZipEntry.STORED) {
+            return data;
+        } else if (entry.getMethod() != ZipEntry.DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.getMethod());
+        }
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] content = new byte[(int) entry.getSize()];
+            int count = 0;
+            while (count < content.length && !inflater.finished()) {
+                int inflated = inflater.inflate(content, count, content.length - count);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                count += inflated;
+            }
+            if (count != content.length) {
+                throw new IOException("Truncated entry " + entry.getName());
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException("Could not inflate " + entry.getName(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static Map<String, Entry> parseCentralDirectory(ByteBuffer cd) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        int position = 0;
+        try {
+            while (position + CENTRAL_HEADER_SIZE <= cd.limit()) {
+                if (cd.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                    throw new IOException("Invalid central directory header");
+                }
+                int method = cd.getShort(position + 10) & 0xffff;
+                long compressedSize = cd.getInt(position + 20) & ZIP64_MAGIC;
+                long size = cd.getInt(position + 24) & ZIP64_MAGIC;
+                int nameLength = cd.getShort(position + 28) & 0xffff;
+                int extraLength = cd.getShort(position + 30) & 0xffff;
+                int commentLength = cd.getShort(position + 32) & 0xffff;
+                long localHeaderOffset = cd.getInt(position + 42) & ZIP64_MAGIC;
+
+                byte[] name = new byte[nameLength];
+                ByteBuffer nameBuffer = cd.duplicate();
+                nameBuffer.position(position + CENTRAL_HEADER_SIZE);
+                nameBuffer.get(name);
+
+                // The zip64 extra field only has the values that didn't fit
+                int extra = position + CENTRAL_HEADER_SIZE + nameLength;
+                int extraEnd = extra + extraLength;
+                while (extra + 4 <= extraEnd) {
+                    int id = cd.getShort(extra) & 0xffff;
+                    int dataSize = cd.getShort(extra + 2) & 0xffff;
+                    if (id == ZIP64_EXTRA_ID) {
+                        int field = extra + 4;
+                        if (size == ZIP64_MAGIC) {
+                            size = cd.getLong(field);
+                            field += 8;
+                        }
+                        if (compressedSize == ZIP64_MAGIC) {
+                            compressedSize = cd.getLong(field);
+                            field += 8;
+                        }
+                        if (localHeaderOffset == ZIP64_MAGIC) {
+                            localHeaderOffset = cd.getLong(field);
+                        }
+                        break;
+                    }
+                    extra += 4 + dataSize;
+                }
+
+                Entry entry = new Entry(new String(name, StandardCharsets.UTF_8), method,
+                        compressedSize, size, localHeaderOffset);
+                entries.put(entry.getName(), entry);
+                position = extraEnd + commentLength;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated central directory", e);
+        }
+        return entries;
+    }
+
+    private static ByteBuffer wrap(byte[] bytes) {
+        return wrap(bytes, 0, bytes.length);
+    }
+
+    private static ByteBuffer wrap(byte[] bytes, int offset, int length) {
+        return ByteBuffer.wrap(bytes, offset, length).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.util.Log;
+
+import org.lineageos.updater.model.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parser of the binary list of updates, an alternative to the JSON list that
+ * servers can send when asked for MIME_TYPE. All the values are big endian:
+ *
+ *   u32 magic ("LUPL")
+ *   u16 version
+ *   u32 number of strings, followed by the strings, each as
+ *     u16 length, UTF-8 bytes
+ *   u32 number of updates, followed by the updates, each as
+ *     u16 length of the rest of the update
+ *     u32 filename, u32 id, u32 romtype, u32 url, u32 version,
+ *     s32 chunk_manifest or -1, as indexes of the strings
+ *     s64 datetime, s64 size
+ *
+ * Strings are stored once however many updates use them. Newer versions of
+ * the format can append fields to the updates, they're skipped.
+ */
+final class BinaryUpdateList {
+
+    private static final String TAG = "BinaryUpdateList";
+
+    static final String MIME_TYPE = "application/vnd.lineageos.update-list";
+
+    private static final int MAGIC = 0x4c55504c;
+    private static final int VERSION = 1;
+    private static final int UPDATE_MIN_LENGTH = 6 * 4 + 2 * 8;
+
+    private BinaryUpdateList() {
+    }
+
+    /**
+     * Thrown when a binary list of updates isn't valid
+     */
+    static final class FormatException extends IOException {
+        private FormatException(String message) {
+            super(message);
+        }
+    }
+
+    static boolean isBinary(InputStream inputStream) throws IOException {
+        inputStream.mark(4);
+        int magic = 0;
+        for (int i = 0; i < 4; i++) {
+            magic = (magic << 8) | (inputStream.read() & 0xff);
+        }
+        inputStream.reset();
+        return magic == MAGIC;
+    }
+
+    /**
+     * @throws FormatException if the buffer isn't a valid list
+     */
+    static void parse(ByteBuffer buffer, boolean compatibleOnly,
+            UpdateListParser.Visitor visitor) throws FormatException {
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        BuildProperties.Filter filter = BuildProperties.get().newFilter();
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new FormatException("Not a binary list of updates");
+            }
+            int version = buffer.getShort() & 0xffff;
+            if (version > VERSION) {
+                // Newer versions only add fields, which we can skip
+                Log.d(TAG, "Parsing list of version " + version);
+            }
+
+            // Decode each string once, the updates only refer to them
+            String[] strings = new String[getCount(buffer)];
+            byte[] bytes = new byte[0xffff];
+            for (int i = 0; i < strings.length; i++) {
+                int length = buffer.getShort() & 0xffff;
+                buffer.get(bytes, 0, length);
+                strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+
+            int count = getCount(buffer);
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getShort() & 0xffff;
+                int next = buffer.position() + length;
+                if (length < UPDATE_MIN_LENGTH) {
+                    throw new FormatException("Update too short, index=" + i);
+                }
+                Update update = new Update();
+                update.setName(getString(buffer, strings));
+                update.setDownloadId(getString(buffer, strings));
+                update.setType(getString(buffer, strings));
+                update.setDownloadUrl(getString(buffer, strings));
+                update.setVersion(getString(buffer, strings));
+                update.setChunkManifestUrl(getString(buffer, strings));
+                update.setTimestamp(buffer.getLong());
+                update.setFileSize(buffer.getLong());
+                buffer.position(next);
+
+                // The same fields as in the JSON lists are mandatory
+                if (update.getTimestamp() < 0 || update.getFileSize() < 0 ||
+                        update.getName() == null || update.getDownloadId() == null ||
+                        update.getType() == null || update.getDownloadUrl() == null ||
+                        update.getVersion() == null) {
+                    Log.e(TAG, "Could not parse update, index=" + i);
+                } else if (compatibleOnly && !filter.isCompatible(update)) {
+                    Log.d(TAG, "Ignoring incompatible update " + update.getName());
+                } else if (!visitor.onUpdate(update)) {
+                    return;
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException |
+                IndexOutOfBoundsException e) {
+            throw new FormatException("Truncated binary list of updates");
+        }
+    }
+
+    private static int getCount(ByteBuffer buffer) throws FormatException {
+        int count = buffer.getInt();
+        // Every element takes at least 2 bytes
+        if (count < 0 || count > buffer.remaining() / 2) {
+            throw new FormatException("Invalid count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * @return the string with the index read from the buffer, or null if -1
+     */
+    private static String getString(ByteBuffer buffer, String[] strings)
+            throws FormatException {
+        int index = buffer.getInt();
+        if (index == -1) {
+            return null;
+        }
+        if (index < 0 || index >= strings.length) {
+            throw new FormatException("Invalid string index " + index);
+        }
+        return strings[index];
+    }
+}
@@ -15,18 +15,16 @@
  */
 package org.lineageos.updater.misc;
 
-import android.os.SystemProperties;
-
 public final class BuildInfoUtils {
 
     private BuildInfoUtils() {
     }
 
     public static long getBuildDateTimestamp() {
-        return SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
+        return BuildProperties.get().getBuildDate();
     }
 
     public static String getBuildVersion() {
-        return SystemProperties.get(Constants.PROP_BUILD_VERSION);
+        return BuildProperties.get().getVersion();
     }
 }
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.os.SystemProperties;
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+
+import org.lineageos.updater.model.UpdateBaseInfo;
+
+import java.util.Locale;
+
+/**
+ * The properties of the running build that decide which updates apply to it.
+ * They are read once per process, so checking every update of a list only
+ * compares fields. The exception is the debug property allowing downgrades,
+ * which can be changed at any time. It's read once by newFilter(), to be used
+ * for all the updates of a list.
+ */
+public final class BuildProperties {
+
+    private static final String TAG = "BuildProperties";
+
+    private static volatile BuildProperties sInstance = null;
+
+    private final String mVersion;
+    private final long mBuildDate;
+    private final String mReleaseType;
+    // Null to follow the property
+    private final Boolean mAllowDowngrading;
+    private final String mIncrementalVersion;
+    private final String mDevice;
+    private final boolean mABDevice;
+
+    @VisibleForTesting
+    public BuildProperties(String version, long buildDate, String releaseType,
+            boolean allowDowngrading, String incrementalVersion, String device,
+            boolean abDevice) {
+        this(version, buildDate, releaseType, Boolean.valueOf(allowDowngrading),
+                incrementalVersion, device, abDevice);
+    }
+
+    private BuildProperties(String version, long buildDate, String releaseType,
+            Boolean allowDowngrading, String incrementalVersion, String device,
+            boolean abDevice) {
+        mVersion = version;
+        mBuildDate = buildDate;
+        mReleaseType = releaseType;
+        mAllowDowngrading = allowDowngrading;
+        mIncrementalVersion = incrementalVersion;
+        mDevice = device;
+        mABDevice = abDevice;
+    }
+
+    public static BuildProperties get() {
+        BuildProperties instance = sInstance;
+        if (instance == null) {
+            synchronized (BuildProperties.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = read();
+                    sInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Use the given properties instead of the ones of the running build
+     */
+    @VisibleForTesting
+    public static void set(BuildProperties properties) {
+        synchronized (BuildProperties.class) {
+            sInstance = properties;
+        }
+    }
+
+    private static BuildProperties read() {
+        return new BuildProperties(
+                SystemProperties.get(Constants.PROP_BUILD_VERSION),
+                SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0),
+                SystemProperties.get(Constants.PROP_RELEASE_TYPE),
+                null,
+                SystemProperties.get(Constants.PROP_BUILD_VERSION_INCREMENTAL),
+                SystemProperties.get(Constants.PROP_NEXT_DEVICE,
+                        SystemProperties.get(Constants.PROP_DEVICE)),
+                SystemProperties.getBoolean(Constants.PROP_AB_DEVICE, false));
+    }
+
+    public String getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return the build date expressed as UNIX timestamp
+     */
+    public long getBuildDate() {
+        return mBuildDate;
+    }
+
+    public String getReleaseType() {
+        return mReleaseType;
+    }
+
+    public String getIncrementalVersion() {
+        return mIncrementalVersion;
+    }
+
+    /**
+     * @return the device the updates are for
+     */
+    public String getDevice() {
+        return mDevice;
+    }
+
+    public boolean isABDevice() {
+        return mABDevice;
+    }
+
+    private boolean isDowngradingAllowed() {
+        if (mAllowDowngrading != null) {
+            return mAllowDowngrading;
+        }
+        return SystemProperties.getBoolean(Constants.PROP_UPDATER_ALLOW_DOWNGRADING, false);
+    }
+
+    /**
+     * @return a filter using the current value of the properties that can change
+     */
+    public Filter newFilter() {
+        return new Filter(isDowngradingAllowed() ? Long.MIN_VALUE : mBuildDate);
+    }
+
+    /**
+     * @return whether the update can be shown in the list of updates
+     */
+    public boolean isCompatible(UpdateBaseInfo update) {
+        return newFilter().isCompatible(update);
+    }
+
+    /**
+     * @return whether the update can be installed on top of the current build
+     */
+    public boolean canInstall(UpdateBaseInfo update) {
+        return newFilter().canInstall(update);
+    }
+
+    /**
+     * @return a string that changes whenever the result of isCompatible() may change
+     */
+    String getCompatibilityKey() {
+        return mVersion + ';' + mBuildDate + ';' + mReleaseType.toLowerCase(Locale.ROOT) +
+                ';' + isDowngradingAllowed();
+    }
+
+    /**
+     * Checks updates against the properties as they were when it was created
+     */
+    public final class Filter {
+        // Updates must be newer than this to be installed
+        private final long mMinTimestamp;
+
+        private Filter(long minTimestamp) {
+            mMinTimestamp = minTimestamp;
+        }
+
+        /**
+         * @return whether the update can be shown in the list of updates
+         */
+        public boolean isCompatible(UpdateBaseInfo update) {
+            if (update.getVersion().compareTo(mVersion) < 0) {
+                Log.d(TAG, update.getName() + " is older than current Android version");
+                return false;
+            }
+            if (update.getTimestamp() <= mMinTimestamp) {
+                Log.d(TAG, update.getName() + " is older than/equal to the current build");
+                return false;
+            }
+            if (!update.getType().equalsIgnoreCase(mReleaseType)) {
+                Log.d(TAG, update.getName() + " has type " + update.getType());
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * @return whether the update can be installed on top of the current build
+         */
+        public boolean canInstall(UpdateBaseInfo update) {
+            return update.getTimestamp() > mMinTimestamp &&
+                    update.getVersion().equalsIgnoreCase(mVersion);
+        }
+    }
+}
@@ -31,10 +31,12 @@ public final class Constants {
     public static final String PREF_LAST_UPDATE_CHECK = "last_update_check";
     public static final String PREF_AUTO_UPDATES_CHECK_INTERVAL = "auto_updates_check_interval";
     public static final String PREF_AUTO_DELETE_UPDATES = "auto_delete_updates";
+    public static final String PREF_AUTO_DOWNLOAD_UPDATES = "auto_download_updates";
     public static final String PREF_AB_PERF_MODE = "ab_perf_mode";
     public static final String PREF_METERED_NETWORK_WARNING = "pref_metered_network_warning";
     public static final String PREF_MOBILE_DATA_WARNING = "pref_mobile_data_warning";
     public static final String PREF_NEEDS_REBOOT_ID = "needs_reboot_id";
+    public static final String PREF_CLEANUP_APPLIED_PAYLOADS = "cleanup_applied_payloads";
 
     public static final String UNCRYPT_FILE_EXT = ".uncrypt";
 
@@ -53,6 +55,7 @@ public final class Constants {
     public static final String PREF_INSTALL_PACKAGE_PATH = "install_package_path";
     public static final String PREF_INSTALL_AGAIN = "install_again";
     public static final String PREF_INSTALL_NOTIFIED = "install_notified";
+    public static final String PREF_INSTALL_UNCRYPTED_IN_PLACE = "install_uncrypted_in_place";
 
     public static final String UPDATE_RECOVERY_EXEC = "/vendor/bin/install-recovery.sh";
     public static final String UPDATE_RECOVERY_PROPERTY = "persist.vendor.recovery_update";
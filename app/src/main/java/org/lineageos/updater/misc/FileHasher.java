@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * SHA-256 helpers for large files. Files are read through memory mapped views.
+ * A plain digest of the whole file, as published by the update server, is
+ * inherently sequential, so the next region is paged in by another thread
+ * while the current one is hashed. A tree hash splits the file in fixed size
+ * chunks and hashes them on all the available cores.
+ */
+public final class FileHasher {
+
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final String ALGORITHM = "SHA-256";
+
+    // Size of the region mapped at once by the sequential digest
+    private static final long WINDOW_SIZE = 32 * 1024 * 1024;
+
+    // Don't split the work further once a task has this many chunks
+    private static final int CHUNKS_PER_TASK = 4;
+
+    private FileHasher() {
+    }
+
+    /**
+     * Result of {@link #treeHash}. Every chunk is hashed on its own, the root is
+     * computed pairwise, level by level, with SHA-256(left || right). A node
+     * without a sibling is carried over to the next level unchanged.
+     */
+    public static final class TreeHash {
+        private final long mChunkSize;
+        private final byte[][] mChunkHashes;
+        private final byte[] mRootHash;
+
+        private TreeHash(long chunkSize, byte[][] chunkHashes, byte[] rootHash) {
+            mChunkSize = chunkSize;
+            mChunkHashes = chunkHashes;
+            mRootHash = rootHash;
+        }
+
+        public long getChunkSize() {
+            return mChunkSize;
+        }
+
+        public int getChunkCount() {
+            return mChunkHashes.length;
+        }
+
+        public byte[] getChunkHash(int index) {
+            return mChunkHashes[index].clone();
+        }
+
+        public byte[] getRootHash() {
+            return mRootHash.clone();
+        }
+    }
+
+    public static byte[] sha256(File file, FileUtils.ProgressCallBack progressCallBack)
+            throws IOException, InterruptedException {
+        return sha256(file, 0, file.length(), progressCallBack);
+    }
+
+    /**
+     * Compute the SHA-256 of a region of the given file
+     *
+     * @param file the file to read
+     * @param offset the start of the region
+     * @param length the length of the region
+     * @param progressCallBack optional callback, can be null
+     * @return the digest
+     * @throws IOException if the region couldn't be read
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public static byte[] sha256(File file, long offset, long length,
+            FileUtils.ProgressCallBack progressCallBack)
+            throws IOException, InterruptedException {
+        return sha256(file, offset, length, null, 0, progressCallBack);
+    }
+
+    /**
+     * Compute the SHA-256 of a region of the given file, feeding its beginning
+     * to another digest along the way so that it's read only once
+     *
+     * @param file the file to read
+     * @param offset the start of the region
+     * @param length the length of the region
+     * @param prefixDigest updated with the first prefixLength bytes, can be null
+     * @param prefixLength how many bytes to feed to prefixDigest
+     * @param progressCallBack optional callback, can be null
+     * @return the digest of the whole region
+     * @throws IOException if the region couldn't be read
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public static byte[] sha256(File file, long offset, long length, MessageDigest prefixDigest,
+            long prefixLength, FileUtils.ProgressCallBack progressCallBack)
+            throws IOException, InterruptedException {
+        MessageDigest digest = newDigest();
+        if (length == 0) {
+            return digest.digest();
+        }
+
+        ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+        try (FileChannel channel = openRegion(file, offset, length)) {
+            Future<MappedByteBuffer> next = prefetcher.submit(
+                    () -> mapRegion(channel, offset, Math.min(WINDOW_SIZE, length)));
+            ProgressReporter reporter = new ProgressReporter(length, progressCallBack);
+            long position = 0;
+            while (position < length) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                MappedByteBuffer window = next.get();
+                final long nextPosition = position + window.remaining();
+                if (nextPosition < length) {
+                    next = prefetcher.submit(() -> mapRegion(channel, offset + nextPosition,
+                            Math.min(WINDOW_SIZE, length - nextPosition)));
+                }
+                if (prefixDigest != null && position < prefixLength) {
+                    ByteBuffer prefix = window.duplicate();
+                    prefix.limit(prefix.position() +
+                            (int) Math.min(prefixLength - position, prefix.remaining()));
+                    prefixDigest.update(prefix);
+                }
+                digest.update(window);
+                reporter.add(nextPosition - position);
+                position = nextPosition;
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Could not read " + file, e.getCause());
+        } finally {
+            prefetcher.shutdownNow();
+        }
+        return digest.digest();
+    }
+
+    public static TreeHash treeHash(File file, int chunkSize,
+            FileUtils.ProgressCallBack progressCallBack)
+            throws IOException, InterruptedException {
+        return treeHash(file, 0, file.length(), chunkSize, progressCallBack);
+    }
+
+    /**
+     * Hash a region of the given file in chunks of the given size, in parallel
+     *
+     * @param file the file to read
+     * @param offset the start of the region
+     * @param length the length of the region
+     * @param chunkSize the size of each chunk, the last one can be shorter
+     * @param progressCallBack optional callback, can be null
+     * @return the hash of each chunk and the root of the tree
+     * @throws IOException if the region couldn't be read
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    public static TreeHash treeHash(File file, long offset, long length, int chunkSize,
+            FileUtils.ProgressCallBack progressCallBack)
+            throws IOException, InterruptedException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        long chunkCount = (length + chunkSize - 1) / chunkSize;
+        if (chunkCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many chunks");
+        }
+
+        byte[][] chunkHashes = new byte[(int) chunkCount][];
+        // The workers block while the pages are read, keep them out of the common pool
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try (FileChannel channel = openRegion(file, offset, length)) {
+            AtomicBoolean cancelled = new AtomicBoolean();
+            ForkJoinTask<Void> task = pool.submit(new ChunkTask(channel,
+                    offset, length, chunkSize, chunkHashes, 0, chunkHashes.length,
+                    new ProgressReporter(length, progressCallBack), cancelled));
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                // Let the workers bail out, then wait for them so that the
+                // channel doesn't get closed while they're still using it
+                cancelled.set(true);
+                task.quietlyJoin();
+                throw e;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                }
+                throw new IOException("Could not hash " + file, cause);
+            } catch (CancellationException e) {
+                throw new InterruptedException();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return new TreeHash(chunkSize, chunkHashes, computeRoot(chunkHashes));
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format(Locale.ROOT, "%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    public static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("Invalid hex string");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid hex string");
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    private static byte[] computeRoot(byte[][] chunkHashes) {
+        if (chunkHashes.length == 0) {
+            return newDigest().digest();
+        }
+        byte[][] level = chunkHashes;
+        MessageDigest digest = newDigest();
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                if (i * 2 + 1 < level.length) {
+                    digest.update(level[i * 2]);
+                    digest.update(level[i * 2 + 1]);
+                    parents[i] = digest.digest();
+                } else {
+                    parents[i] = level[i * 2];
+                }
+            }
+            level = parents;
+        }
+        return level[0];
+    }
+
+    private static FileChannel openRegion(File file, long offset, long length)
+            throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        if (offset < 0 || length < 0 || offset + length > channel.size()) {
+            channel.close();
+            throw new IOException("Invalid region " + offset + "+" + length + " of " + file);
+        }
+        return channel;
+    }
+
+    private static MappedByteBuffer mapRegion(FileChannel channel, long position, long size)
+            throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        // Fault the pages in here rather than in the hashing thread
+        buffer.load();
+        return buffer;
+    }
+
+    /**
+     * @return a new SHA-256 digest
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java implementation is required to support it
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class ProgressReporter {
+        private final long mTotal;
+        private final FileUtils.ProgressCallBack mCallback;
+        private long mDone;
+        private int mProgress = -1;
+
+        private ProgressReporter(long total, FileUtils.ProgressCallBack callback) {
+            mTotal = total;
+            mCallback = callback;
+        }
+
+        private synchronized void add(long bytes) {
+            if (mCallback == null) {
+                return;
+            }
+            mDone += bytes;
+            int progress = mTotal > 0 ? Math.round(mDone * 100.f / mTotal) : 100;
+            if (progress != mProgress) {
+                mProgress = progress;
+                mCallback.update(progress);
+            }
+        }
+    }
+
+    private static class ChunkTask extends RecursiveAction {
+        private final FileChannel mChannel;
+        private final long mOffset;
+        private final long mLength;
+        private final int mChunkSize;
+        private final byte[][] mChunkHashes;
+        private final int mFirst;
+        private final int mLast;
+        private final ProgressReporter mReporter;
+        private final AtomicBoolean mCancelled;
+
+        private ChunkTask(FileChannel channel, long offset, long length, int chunkSize,
+                byte[][] chunkHashes, int first, int last, ProgressReporter reporter,
+                AtomicBoolean cancelled) {
+            mChannel = channel;
+            mOffset = offset;
+            mLength = length;
+            mChunkSize = chunkSize;
+            mChunkHashes = chunkHashes;
+            mFirst = first;
+            mLast = last;
+            mReporter = reporter;
+            mCancelled = cancelled;
+        }
+
+        @Override
+        protected void compute() {
+            if (mLast - mFirst > CHUNKS_PER_TASK) {
+                int middle = (mFirst + mLast) >>> 1;
+                invokeAll(
+                        new ChunkTask(mChannel, mOffset, mLength, mChunkSize, mChunkHashes,
+                                mFirst, middle, mReporter, mCancelled),
+                        new ChunkTask(mChannel, mOffset, mLength, mChunkSize, mChunkHashes,
+                                middle, mLast, mReporter, mCancelled));
+                return;
+            }
+            MessageDigest digest = newDigest();
+            for (int i = mFirst; i < mLast && !mCancelled.get(); i++) {
+                long start = (long) i * mChunkSize;
+                long size = Math.min(mChunkSize, mLength - start);
+                try {
+                    ByteBuffer chunk = mChannel.map(FileChannel.MapMode.READ_ONLY,
+                            mOffset + start, size);
+                    digest.update(chunk);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                mChunkHashes[i] = digest.digest();
+                mReporter.add(size);
+            }
+        }
+    }
+}
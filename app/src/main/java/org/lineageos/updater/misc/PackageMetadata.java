@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import org.lineageos.updater.download.RemoteZip;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The key=value pairs of META-INF/com/android/metadata, which describes an OTA
+ * package. It can be read from a local package or from a remote one.
+ */
+public final class PackageMetadata {
+
+    public static final String PATH = "META-INF/com/android/metadata";
+
+    private static final String KEY_OTA_TYPE = "ota-type";
+    private static final String KEY_POST_TIMESTAMP = "post-timestamp";
+    private static final String OTA_TYPE_AB = "AB";
+
+    private static final int MAX_SIZE = 64 * 1024;
+
+    private final Map<String, String> mValues;
+
+    private PackageMetadata(Map<String, String> values) {
+        mValues = values;
+    }
+
+    public static PackageMetadata parse(String content) {
+        Map<String, String> values = new HashMap<>();
+        for (String line : content.split("\n")) {
+            int separator = line.indexOf('=');
+            if (separator > 0) {
+                values.put(line.substring(0, separator).trim(),
+                        line.substring(separator + 1).trim());
+            }
+        }
+        return new PackageMetadata(values);
+    }
+
+    public static PackageMetadata read(File file) throws IOException {
+        try (ZipFile zipFile = new ZipFile(file)) {
+            ZipEntry entry = zipFile.getEntry(PATH);
+            if (entry == null) {
+                throw new FileNotFoundException("Couldn't find " + PATH + " in " +
+                        file.getName());
+            }
+            try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int read;
+                while ((read = inputStream.read(buffer)) > 0) {
+                    if (outputStream.size() + read > MAX_SIZE) {
+                        throw new IOException(PATH + " is too big");
+                    }
+                    outputStream.write(buffer, 0, read);
+                }
+                return parse(new String(outputStream.toByteArray(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    public static PackageMetadata read(RemoteZip zip) throws IOException {
+        RemoteZip.Entry entry = zip.getEntry(PATH);
+        if (entry == null) {
+            throw new FileNotFoundException("Couldn't find " + PATH + " in " + zip.getUrl());
+        }
+        return parse(new String(zip.read(entry, MAX_SIZE), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the build date of the package expressed as UNIX timestamp, or -1
+     */
+    public long getTimestamp() {
+        String value = mValues.get(KEY_POST_TIMESTAMP);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public boolean isAB() {
+        return OTA_TYPE_AB.equals(mValues.get(KEY_OTA_TYPE));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import org.lineageos.updater.model.UpdateBaseInfo;
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The differences between two versions of the list of updates. Updates are
+ * matched by ID, and an update is changed if any of the fields sent by the
+ * server is different.
+ */
+public final class UpdateListDiff {
+
+    private final List<UpdateInfo> mAdded = new ArrayList<>();
+    private final List<UpdateInfo> mChanged = new ArrayList<>();
+    private final Set<String> mRemoved = new HashSet<>();
+
+    private UpdateListDiff() {
+    }
+
+    public static UpdateListDiff compute(List<UpdateInfo> oldList, List<UpdateInfo> newList) {
+        UpdateListDiff diff = new UpdateListDiff();
+        Map<String, UpdateInfo> oldUpdates = new HashMap<>();
+        for (UpdateInfo update : oldList) {
+            oldUpdates.put(update.getDownloadId(), update);
+        }
+        for (UpdateInfo update : newList) {
+            UpdateInfo oldUpdate = oldUpdates.remove(update.getDownloadId());
+            if (oldUpdate == null) {
+                diff.mAdded.add(update);
+            } else if (!sameContent(oldUpdate, update)) {
+                diff.mChanged.add(update);
+            }
+        }
+        diff.mRemoved.addAll(oldUpdates.keySet());
+        return diff;
+    }
+
+    private static boolean sameContent(UpdateBaseInfo u1, UpdateBaseInfo u2) {
+        return u1.getTimestamp() == u2.getTimestamp() &&
+                u1.getFileSize() == u2.getFileSize() &&
+                Objects.equals(u1.getName(), u2.getName()) &&
+                Objects.equals(u1.getType(), u2.getType()) &&
+                Objects.equals(u1.getVersion(), u2.getVersion()) &&
+                Objects.equals(u1.getDownloadUrl(), u2.getDownloadUrl()) &&
+                Objects.equals(u1.getChunkManifestUrl(), u2.getChunkManifestUrl());
+    }
+
+    public List<UpdateInfo> getAdded() {
+        return mAdded;
+    }
+
+    public List<UpdateInfo> getChanged() {
+        return mChanged;
+    }
+
+    public Set<String> getRemoved() {
+        return mRemoved;
+    }
+
+    public boolean isEmpty() {
+        return mAdded.isEmpty() && mChanged.isEmpty() && mRemoved.isEmpty();
+    }
+}
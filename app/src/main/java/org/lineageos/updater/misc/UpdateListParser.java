@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import android.util.Log;
+import android.util.MalformedJsonException;
+
+import org.lineageos.updater.model.Update;
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming parser of the list of updates returned by the server. Updates are
+ * handed to a visitor one at a time as they are read, so memory usage doesn't
+ * depend on the length of the list, and parsing can stop as soon as the
+ * visitor has what it needs.
+ */
+public final class UpdateListParser {
+
+    private static final String TAG = "UpdateListParser";
+
+    public interface Visitor {
+        /**
+         * @param update the update just parsed
+         * @return false to stop parsing
+         */
+        boolean onUpdate(UpdateInfo update);
+    }
+
+    private UpdateListParser() {
+    }
+
+    /**
+     * The list is stored as sent by the server, so it's decompressed while
+     * parsing if it was sent with gzip. Binary lists are mapped in memory
+     * instead of being read, unless they're compressed.
+     *
+     * @throws IOException if the file can't be read
+     * @throws MalformedJsonException if the file isn't a valid JSON list
+     * @throws BinaryUpdateList.FormatException if the file isn't a valid binary list
+     */
+    public static void parse(File file, boolean compatibleOnly, Visitor visitor)
+            throws IOException {
+        try (FileInputStream fileStream = new FileInputStream(file)) {
+            InputStream inputStream = new BufferedInputStream(fileStream);
+            if (isGzip(inputStream)) {
+                inputStream = new BufferedInputStream(new GZIPInputStream(inputStream));
+                if (BinaryUpdateList.isBinary(inputStream)) {
+                    BinaryUpdateList.parse(ByteBuffer.wrap(readFully(inputStream)),
+                            compatibleOnly, visitor);
+                    return;
+                }
+            } else if (BinaryUpdateList.isBinary(inputStream)) {
+                FileChannel channel = fileStream.getChannel();
+                BinaryUpdateList.parse(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        channel.size()), compatibleOnly, visitor);
+                return;
+            }
+            parse(inputStream, compatibleOnly, visitor);
+        }
+    }
+
+    /**
+     * @return the value of the Accept header to send when downloading a list,
+     * the server can send either a binary or a JSON list
+     */
+    public static String getAcceptedTypes() {
+        return BinaryUpdateList.MIME_TYPE + ", application/json;q=0.9";
+    }
+
+    private static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = inputStream.read(buffer)) > 0) {
+            outputStream.write(buffer, 0, read);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static boolean isGzip(InputStream inputStream) throws IOException {
+        inputStream.mark(2);
+        int magic = inputStream.read() | (inputStream.read() << 8);
+        inputStream.reset();
+        return magic == GZIPInputStream.GZIP_MAGIC;
+    }
+
+    /**
+     * @throws IOException if the stream can't be read
+     * @throws MalformedJsonException if the stream isn't a valid list
+     */
+    public static void parse(InputStream inputStream, boolean compatibleOnly, Visitor visitor)
+            throws IOException {
+        JsonReader reader = new JsonReader(
+                new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        BuildProperties.Filter filter = BuildProperties.get().newFilter();
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"response".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                for (int i = 0; reader.hasNext(); i++) {
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    UpdateInfo update = parseUpdate(reader);
+                    if (update == null) {
+                        Log.e(TAG, "Could not parse update object, index=" + i);
+                    } else if (compatibleOnly && !filter.isCompatible(update)) {
+                        Log.d(TAG, "Ignoring incompatible update " + update.getName());
+                    } else if (!visitor.onUpdate(update)) {
+                        return;
+                    }
+                }
+                return;
+            }
+            throw new MalformedJsonException("No response in the list of updates");
+        } catch (IllegalStateException e) {
+            // Thrown by JsonReader when the structure doesn't match
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+
+    /**
+     * Write the updates in the same format as the lists sent by the server
+     */
+    public static void write(File file, Collection<? extends UpdateInfo> updates)
+            throws IOException {
+        try (JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8)))) {
+            writer.beginObject();
+            writer.name("response");
+            writer.beginArray();
+            for (UpdateInfo update : updates) {
+                writer.beginObject();
+                writer.name("datetime").value(update.getTimestamp());
+                writer.name("filename").value(update.getName());
+                writer.name("id").value(update.getDownloadId());
+                writer.name("romtype").value(update.getType());
+                writer.name("size").value(update.getFileSize());
+                writer.name("url").value(update.getDownloadUrl());
+                writer.name("version").value(update.getVersion());
+                if (update.getChunkManifestUrl() != null) {
+                    writer.name("chunk_manifest").value(update.getChunkManifestUrl());
+                }
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+    }
+
+    /**
+     * @return the update, or null if it lacks any of the mandatory fields
+     */
+    private static UpdateInfo parseUpdate(JsonReader reader) throws IOException {
+        long timestamp = -1;
+        long size = -1;
+        String name = null;
+        String downloadId = null;
+        String type = null;
+        String url = null;
+        String version = null;
+        String chunkManifestUrl = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "datetime":
+                    timestamp = nextLong(reader);
+                    break;
+                case "filename":
+                    name = nextString(reader);
+                    break;
+                case "id":
+                    downloadId = nextString(reader);
+                    break;
+                case "romtype":
+                    type = nextString(reader);
+                    break;
+                case "size":
+                    size = nextLong(reader);
+                    break;
+                case "url":
+                    url = nextString(reader);
+                    break;
+                case "version":
+                    version = nextString(reader);
+                    break;
+                case "chunk_manifest":
+                    chunkManifestUrl = nextString(reader);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if (timestamp < 0 || size < 0 || name == null || downloadId == null ||
+                type == null || url == null || version == null) {
+            return null;
+        }
+        Update update = new Update();
+        update.setTimestamp(timestamp);
+        update.setName(name);
+        update.setDownloadId(downloadId);
+        update.setType(type);
+        update.setFileSize(size);
+        update.setDownloadUrl(url);
+        update.setVersion(version);
+        update.setChunkManifestUrl(chunkManifestUrl);
+        return update;
+    }
+
+    /**
+     * @return the value as string, or null if it's not a string nor a number
+     */
+    private static String nextString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        reader.skipValue();
+        return null;
+    }
+
+    /**
+     * @return the value as long, or -1 if it's not a valid number
+     */
+    private static long nextLong(JsonReader reader) throws IOException {
+        String value = nextString(reader);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.lineageos.updater.model.Update;
+import org.lineageos.updater.model.UpdateInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compatible updates of a list of updates, as returned by
+ * {@link Utils#parseJson(File, boolean)}. Parsed lists are kept in memory and
+ * the last one is also stored on disk in a compact binary form, so that the
+ * same list isn't parsed again every time the app starts. Snapshots are
+ * identified by the digest of the list and by the build properties that
+ * decide which updates are compatible.
+ */
+public final class UpdateListSnapshot {
+
+    private static final String TAG = "UpdateListSnapshot";
+
+    private static final String SNAPSHOT_FILE = "updates.snapshot";
+    private static final int MAGIC = 0x55504c53; // UPLS
+    private static final int VERSION = 1;
+
+    private static final int MAX_CACHED_SNAPSHOTS = 2;
+
+    // The list being replaced and the new one are often needed together
+    private static final Map<String, List<UpdateInfo>> sSnapshots =
+            new LinkedHashMap<String, List<UpdateInfo>>(MAX_CACHED_SNAPSHOTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, List<UpdateInfo>> eldest) {
+                    return size() > MAX_CACHED_SNAPSHOTS;
+                }
+            };
+
+    // When comparing two lists, don't let the old one replace the new one on disk
+    private static long sLastWrittenModified = 0;
+
+    private UpdateListSnapshot() {
+    }
+
+    /**
+     * @param jsonFile the list of updates
+     * @return the compatible updates of the given list, they must not be modified
+     */
+    public static synchronized List<UpdateInfo> get(File jsonFile)
+            throws IOException, JSONException {
+        String key = getKey(jsonFile);
+        List<UpdateInfo> updates = sSnapshots.get(key);
+        if (updates != null) {
+            return updates;
+        }
+
+        File snapshotFile = new File(jsonFile.getParentFile(), SNAPSHOT_FILE);
+        updates = read(snapshotFile, key);
+        if (updates == null) {
+            updates = Collections.unmodifiableList(Utils.parseJson(jsonFile, true));
+            long lastModified = jsonFile.lastModified();
+            if (lastModified >= sLastWrittenModified) {
+                try {
+                    write(snapshotFile, key, updates);
+                    sLastWrittenModified = lastModified;
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not write " + snapshotFile, e);
+                }
+            }
+        }
+        sSnapshots.put(key, updates);
+        return updates;
+    }
+
+    private static String getKey(File jsonFile) throws IOException {
+        byte[] digest;
+        try {
+            digest = FileHasher.sha256(jsonFile, null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        return FileHasher.toHex(digest) + ';' + BuildProperties.get().getCompatibilityKey();
+    }
+
+    /**
+     * @return the updates of the snapshot, or null if missing or stale
+     */
+    private static List<UpdateInfo> read(File snapshotFile, String key) {
+        if (!snapshotFile.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                    !key.equals(in.readUTF())) {
+                return null;
+            }
+            int count = in.readInt();
+            List<UpdateInfo> updates = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Update update = new Update();
+                update.setDownloadId(in.readUTF());
+                update.setName(in.readUTF());
+                update.setType(in.readUTF());
+                update.setVersion(in.readUTF());
+                update.setDownloadUrl(in.readUTF());
+                update.setChunkManifestUrl(in.readBoolean() ? in.readUTF() : null);
+                update.setTimestamp(in.readLong());
+                update.setFileSize(in.readLong());
+                updates.add(update);
+            }
+            return Collections.unmodifiableList(updates);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + snapshotFile, e);
+            return null;
+        }
+    }
+
+    private static void write(File snapshotFile, String key, List<UpdateInfo> updates)
+            throws IOException {
+        File tmpFile = new File(snapshotFile.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            out.writeInt(updates.size());
+            for (UpdateInfo update : updates) {
+                out.writeUTF(update.getDownloadId());
+                out.writeUTF(update.getName());
+                out.writeUTF(update.getType());
+                out.writeUTF(update.getVersion());
+                out.writeUTF(update.getDownloadUrl());
+                String chunkManifestUrl = update.getChunkManifestUrl();
+                out.writeBoolean(chunkManifestUrl != null);
+                if (chunkManifestUrl != null) {
+                    out.writeUTF(chunkManifestUrl);
+                }
+                out.writeLong(update.getTimestamp());
+                out.writeLong(update.getFileSize());
+            }
+        }
+        if (!tmpFile.renameTo(snapshotFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmpFile.delete();
+            throw new IOException("Could not rename " + tmpFile);
+        }
+    }
+}
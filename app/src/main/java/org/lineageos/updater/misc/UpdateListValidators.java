@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2024 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.updater.misc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.preference.PreferenceManager;
+
+import org.lineageos.updater.download.DownloadClient;
+
+import java.io.File;
+
+/**
+ * The HTTP validators (ETag and Last-Modified) of the cached list of updates.
+ * They are sent when refreshing the list so that the server can reply that
+ * nothing changed instead of sending the whole list again.
+ */
+public final class UpdateListValidators {
+
+    // Followed by the URL of the list
+    private static final String PREF_ETAG = "updates_list_etag_";
+    private static final String PREF_LAST_MODIFIED = "updates_list_last_modified_";
+
+    private String mETag;
+    private String mLastModified;
+
+    /**
+     * Add the validators of the cached list, if any, to the request of the given URL
+     *
+     * @param list the list downloaded from the given URL
+     */
+    public static void addTo(Context context, DownloadClient.Builder builder, String url,
+            File list) {
+        // They are only meaningful if we still have the list they refer to
+        if (!list.exists()) {
+            return;
+        }
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        String eTag = preferences.getString(PREF_ETAG + url, null);
+        String lastModified = preferences.getString(PREF_LAST_MODIFIED + url, null);
+        if (eTag != null) {
+            builder.addRequestHeader("If-None-Match", eTag);
+        }
+        if (lastModified != null) {
+            builder.addRequestHeader("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * Remember the validators of a response, to be stored once the list is saved
+     */
+    public void onResponse(DownloadClient.Headers headers) {
+        mETag = headers.get("ETag");
+        mLastModified = headers.get("Last-Modified");
+    }
+
+    /**
+     * Store the validators of the list just saved as the cached one
+     */
+    public void store(Context context, String url) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putString(PREF_ETAG + url, mETag)
+                .putString(PREF_LAST_MODIFIED + url, mLastModified)
+                .apply();
+    }
+
+    /**
+     * Forget the validators of a list that isn't used anymore
+     */
+    public static void remove(Context context, String url) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .remove(PREF_ETAG + url)
+                .remove(PREF_LAST_MODIFIED + url)
+                .apply();
+    }
+}
@@ -28,23 +28,19 @@ import android.net.NetworkCapabilities;
 import android.os.SystemProperties;
 import android.os.storage.StorageManager;
 import android.util.Log;
+import android.util.MalformedJsonException;
 import android.widget.Toast;
 
 import androidx.preference.PreferenceManager;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.lineageos.updater.R;
 import org.lineageos.updater.UpdatesDbHelper;
 import org.lineageos.updater.controller.UpdaterService;
-import org.lineageos.updater.model.Update;
 import org.lineageos.updater.model.UpdateBaseInfo;
 import org.lineageos.updater.model.UpdateInfo;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Enumeration;
@@ -81,101 +77,69 @@ public class Utils {
         return new File(context.getCacheDir(), "updates.json");
     }
 
-    // This should really return an UpdateBaseInfo object, but currently this only
-    // used to initialize UpdateInfo objects
-    private static UpdateInfo parseJsonUpdate(JSONObject object) throws JSONException {
-        Update update = new Update();
-        update.setTimestamp(object.getLong("datetime"));
-        update.setName(object.getString("filename"));
-        update.setDownloadId(object.getString("id"));
-        update.setType(object.getString("romtype"));
-        update.setFileSize(object.getLong("size"));
-        update.setDownloadUrl(object.getString("url"));
-        update.setVersion(object.getString("version"));
-        return update;
-    }
-
     public static boolean isCompatible(UpdateBaseInfo update) {
-        if (update.getVersion().compareTo(SystemProperties.get(Constants.PROP_BUILD_VERSION)) < 0) {
-            Log.d(TAG, update.getName() + " is older than current Android version");
-            return false;
-        }
-        if (!SystemProperties.getBoolean(Constants.PROP_UPDATER_ALLOW_DOWNGRADING, false) &&
-                update.getTimestamp() <= SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0)) {
-            Log.d(TAG, update.getName() + " is older than/equal to the current build");
-            return false;
-        }
-        if (!update.getType().equalsIgnoreCase(SystemProperties.get(Constants.PROP_RELEASE_TYPE))) {
-            Log.d(TAG, update.getName() + " has type " + update.getType());
-            return false;
-        }
-        return true;
+        return BuildProperties.get().isCompatible(update);
     }
 
     public static boolean canInstall(UpdateBaseInfo update) {
-        return (SystemProperties.getBoolean(Constants.PROP_UPDATER_ALLOW_DOWNGRADING, false) ||
-                update.getTimestamp() > SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0)) &&
-                update.getVersion().equalsIgnoreCase(
-                        SystemProperties.get(Constants.PROP_BUILD_VERSION));
+        return BuildProperties.get().canInstall(update);
     }
 
     public static List<UpdateInfo> parseJson(File file, boolean compatibleOnly)
             throws IOException, JSONException {
         List<UpdateInfo> updates = new ArrayList<>();
+        parseJson(file, compatibleOnly, updates::add);
+        return updates;
+    }
 
-        StringBuilder json = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            for (String line; (line = br.readLine()) != null;) {
-                json.append(line);
-            }
-        }
-
-        JSONObject obj = new JSONObject(json.toString());
-        JSONArray updatesList = obj.getJSONArray("response");
-        for (int i = 0; i < updatesList.length(); i++) {
-            if (updatesList.isNull(i)) {
-                continue;
-            }
-            try {
-                UpdateInfo update = parseJsonUpdate(updatesList.getJSONObject(i));
-                if (!compatibleOnly || isCompatible(update)) {
-                    updates.add(update);
-                } else {
-                    Log.d(TAG, "Ignoring incompatible update " + update.getName());
-                }
-            } catch (JSONException e) {
-                Log.e(TAG, "Could not parse update object, index=" + i, e);
-            }
+    private static void parseJson(File file, boolean compatibleOnly,
+            UpdateListParser.Visitor visitor) throws IOException, JSONException {
+        try {
+            UpdateListParser.parse(file, compatibleOnly, visitor);
+        } catch (MalformedJsonException | BinaryUpdateList.FormatException e) {
+            JSONException exception = new JSONException(e.getMessage());
+            exception.initCause(e);
+            throw exception;
         }
-
-        return updates;
     }
 
     public static String getServerURL(Context context) {
-        String incrementalVersion = SystemProperties.get(Constants.PROP_BUILD_VERSION_INCREMENTAL);
-        String device = SystemProperties.get(Constants.PROP_NEXT_DEVICE,
-                SystemProperties.get(Constants.PROP_DEVICE));
-        String type = SystemProperties.get(Constants.PROP_RELEASE_TYPE).toLowerCase(Locale.ROOT);
-
         String serverUrl = SystemProperties.get(Constants.PROP_UPDATER_URI);
         if (serverUrl.trim().isEmpty()) {
             serverUrl = context.getString(R.string.updater_server_url);
         }
+        return expandServerURL(serverUrl);
+    }
+
+    /**
+     * @return the URLs of all the lists of updates, starting from the main one
+     */
+    public static List<String> getServerURLs(Context context) {
+        List<String> urls = new ArrayList<>();
+        urls.add(getServerURL(context));
+        for (String url : context.getResources().getStringArray(R.array.updater_mirror_urls)) {
+            String serverUrl = expandServerURL(url);
+            if (!urls.contains(serverUrl)) {
+                urls.add(serverUrl);
+            }
+        }
+        return urls;
+    }
 
-        return serverUrl.replace("{device}", device)
-                .replace("{type}", type)
-                .replace("{incr}", incrementalVersion);
+    private static String expandServerURL(String serverUrl) {
+        BuildProperties buildProperties = BuildProperties.get();
+        return serverUrl.replace("{device}", buildProperties.getDevice())
+                .replace("{type}", buildProperties.getReleaseType().toLowerCase(Locale.ROOT))
+                .replace("{incr}", buildProperties.getIncrementalVersion());
     }
 
     public static String getUpgradeBlockedURL(Context context) {
-        String device = SystemProperties.get(Constants.PROP_NEXT_DEVICE,
-                SystemProperties.get(Constants.PROP_DEVICE));
+        String device = BuildProperties.get().getDevice();
         return context.getString(R.string.blocked_update_info_url, device);
     }
 
     public static String getChangelogURL(Context context) {
-        String device = SystemProperties.get(Constants.PROP_NEXT_DEVICE,
-                SystemProperties.get(Constants.PROP_DEVICE));
+        String device = BuildProperties.get().getDevice();
         return context.getString(R.string.menu_changelog_url, device);
     }
 
@@ -186,6 +150,13 @@ public class Utils {
         context.startService(intent);
     }
 
+    public static void triggerStreamingUpdate(Context context, String downloadId) {
+        final Intent intent = new Intent(context, UpdaterService.class);
+        intent.setAction(UpdaterService.ACTION_INSTALL_STREAMING);
+        intent.putExtra(UpdaterService.EXTRA_DOWNLOAD_ID, downloadId);
+        context.startService(intent);
+    }
+
     public static boolean isNetworkAvailable(Context context) {
         ConnectivityManager cm = context.getSystemService(ConnectivityManager.class);
         Network activeNetwork = cm.getActiveNetwork();
@@ -216,15 +187,14 @@ public class Utils {
      */
     public static boolean checkForNewUpdates(File oldJson, File newJson)
             throws IOException, JSONException {
-        List<UpdateInfo> oldList = parseJson(oldJson, true);
-        List<UpdateInfo> newList = parseJson(newJson, true);
+        // Both lists are needed right after this, use the snapshots
         Set<String> oldIds = new HashSet<>();
-        for (UpdateInfo update : oldList) {
+        for (UpdateInfo update : UpdateListSnapshot.get(oldJson)) {
             oldIds.add(update.getDownloadId());
         }
         // In case of no new updates, the old list should
         // have all (if not more) the updates
-        for (UpdateInfo update : newList) {
+        for (UpdateInfo update : UpdateListSnapshot.get(newJson)) {
             if (!oldIds.contains(update.getDownloadId())) {
                 return true;
             }
@@ -286,20 +256,26 @@ public class Utils {
 
         removeUncryptFiles(downloadPath);
 
-        long buildTimestamp = SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
+        long buildTimestamp = BuildProperties.get().getBuildDate();
         long prevTimestamp = preferences.getLong(Constants.PREF_INSTALL_OLD_TIMESTAMP, 0);
         String lastUpdatePath = preferences.getString(Constants.PREF_INSTALL_PACKAGE_PATH, null);
         boolean reinstalling = preferences.getBoolean(Constants.PREF_INSTALL_AGAIN, false);
         boolean deleteUpdates = preferences.getBoolean(Constants.PREF_AUTO_DELETE_UPDATES, false);
-        if ((buildTimestamp != prevTimestamp || reinstalling) && deleteUpdates &&
-                lastUpdatePath != null) {
+        // A package uncrypted in place can't be read anymore, whatever happened
+        boolean uncryptedInPlace = preferences.getBoolean(
+                Constants.PREF_INSTALL_UNCRYPTED_IN_PLACE, false);
+        if (((buildTimestamp != prevTimestamp || reinstalling) && deleteUpdates ||
+                uncryptedInPlace) && lastUpdatePath != null) {
             File lastUpdate = new File(lastUpdatePath);
             if (lastUpdate.exists()) {
                 //noinspection ResultOfMethodCallIgnored
                 lastUpdate.delete();
-                // Remove the pref not to delete the file if re-downloaded
-                preferences.edit().remove(Constants.PREF_INSTALL_PACKAGE_PATH).apply();
             }
+            // Remove the prefs not to delete the file if re-downloaded
+            preferences.edit()
+                    .remove(Constants.PREF_INSTALL_PACKAGE_PATH)
+                    .remove(Constants.PREF_INSTALL_UNCRYPTED_IN_PLACE)
+                    .apply();
         }
 
         final String DOWNLOADS_CLEANUP_DONE = "cleanup_done";
@@ -355,7 +331,7 @@ public class Utils {
     }
 
     public static boolean isABDevice() {
-        return SystemProperties.getBoolean(Constants.PROP_AB_DEVICE, false);
+        return BuildProperties.get().isABDevice();
     }
 
     public static boolean isABUpdate(ZipFile zipFile) {
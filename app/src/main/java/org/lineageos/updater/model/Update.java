@@ -27,6 +27,8 @@ public class Update extends UpdateBase implements UpdateInfo {
     private long mEta;
     private long mSpeed;
     private int mInstallProgress;
+    private long mInstallEta;
+    private long mRequiredSpace;
     private boolean mAvailableOnline;
     private boolean mIsFinalizing;
 
@@ -42,6 +44,8 @@ public class Update extends UpdateBase implements UpdateInfo {
         mEta = update.getEta();
         mSpeed = update.getSpeed();
         mInstallProgress = update.getInstallProgress();
+        mInstallEta = update.getInstallEta();
+        mRequiredSpace = update.getRequiredSpace();
         mAvailableOnline = update.getAvailableOnline();
         mIsFinalizing = update.getFinalizing();
     }
@@ -109,6 +113,24 @@ public class Update extends UpdateBase implements UpdateInfo {
         mInstallProgress = progress;
     }
 
+    @Override
+    public long getInstallEta() {
+        return mInstallEta;
+    }
+
+    public void setInstallEta(long eta) {
+        mInstallEta = eta;
+    }
+
+    @Override
+    public long getRequiredSpace() {
+        return mRequiredSpace;
+    }
+
+    public void setRequiredSpace(long requiredSpace) {
+        mRequiredSpace = requiredSpace;
+    }
+
     @Override
     public boolean getAvailableOnline() {
         return mAvailableOnline;
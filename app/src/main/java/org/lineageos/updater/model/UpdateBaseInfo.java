@@ -29,4 +29,6 @@ public interface UpdateBaseInfo {
     String getDownloadUrl();
 
     long getFileSize();
+
+    String getChunkManifestUrl();
 }
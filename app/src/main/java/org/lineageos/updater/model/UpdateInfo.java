@@ -34,6 +34,10 @@ public interface UpdateInfo extends UpdateBaseInfo {
 
     int getInstallProgress();
 
+    long getInstallEta();
+
+    long getRequiredSpace();
+
     boolean getAvailableOnline();
 
     boolean getFinalizing();